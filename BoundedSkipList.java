@@ -0,0 +1,89 @@
+/** SkipList that holds at most capacity elements, evicting from one end */
+import java.util.*;
+import java.util.function.Consumer;
+
+public class BoundedSkipList<E> extends SkipList<E> {
+    // which end loses an element when the list is full
+    public enum Evict { LOWEST, HIGHEST }
+
+    private final int capacity;
+    private final Evict end;
+    private Consumer<? super E> onEvict; // told about every element pushed out, may be null
+
+    public BoundedSkipList(int capacity, Evict end) {
+        this(capacity, end, null);
+    }
+
+    public BoundedSkipList(int capacity, Evict end, Consumer<? super E> onEvict) {
+        super();
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.end = end;
+        this.onEvict = onEvict;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public void setEvictionListener(Consumer<? super E> onEvict) {
+        this.onEvict = onEvict;
+    }
+
+    /* adds e, evicting the element at the bounded end if the list is full.
+     * Returns false without touching the list when e would be the one evicted,
+     * so a full top-K list never allocates a node for a losing score. */
+    public boolean add(E e) {
+        if (size() >= capacity) {
+            @SuppressWarnings("unchecked")
+            Comparable<E> ce = (Comparable<E>) e;
+            if (end == Evict.LOWEST ? ce.compareTo(peekFirst()) <= 0 : ce.compareTo(peekLast()) >= 0) {
+                return false;
+            }
+            E evicted = (end == Evict.LOWEST) ? pollFirst() : pollLast();
+            if (onEvict != null) {
+                onEvict.accept(evicted);
+            }
+        }
+        return super.add(e);
+    }
+
+    // Tests
+
+    public static boolean testKeepsTopK() {
+        final List<Integer> evicted = new ArrayList<Integer>();
+        BoundedSkipList<Integer> top = new BoundedSkipList<Integer>(3, Evict.LOWEST, evicted::add);
+
+        top.add(50);
+        top.add(10);
+        top.add(30);
+        boolean rejected = !top.add(5);  // lower than everything on a full board
+        top.add(40);                     // pushes 10 out
+        top.add(60);                     // pushes 30 out
+
+        return rejected
+            && top.size() == 3
+            && top.get(0) == 40 && top.get(1) == 50 && top.get(2) == 60
+            && evicted.equals(Arrays.asList(10, 30));
+    }
+
+    public static boolean testKeepsBottomK() {
+        BoundedSkipList<Integer> bottom = new BoundedSkipList<Integer>(100, Evict.HIGHEST);
+        Random rand = new Random(3);
+        List<Integer> all = new ArrayList<Integer>();
+        for (int i = 0; i < 5000; i++) {
+            int value = rand.nextInt(100000);
+            bottom.add(value);
+            all.add(value);
+        }
+        Collections.sort(all);
+        return bottom.size() == 100 && bottom.equals(all.subList(0, 100));
+    }
+
+    public static void main(String[] args) {
+        System.out.println("keeps top k: " + Boolean.toString(testKeepsTopK()));
+        System.out.println("keeps bottom k: " + Boolean.toString(testKeepsBottomK()));
+    }
+}
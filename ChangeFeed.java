@@ -0,0 +1,279 @@
+/** Change data capture for a SkipList: numbered adds, removes and clears that readers consume in batches */
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+public class ChangeFeed<E> implements ChangeListener<E> {
+    private static final int DEFAULT_RETAINED = 1 << 16;
+
+    public enum Kind { ADD, REMOVE, CLEAR }
+
+    // one change and its sequence number; element is null for a clear
+    public static final class Change<E> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final long seq;
+        public final Kind kind;
+        public final E element;
+
+        Change(long seq, Kind kind, E element) {
+            this.seq = seq;
+            this.kind = kind;
+            this.element = element;
+        }
+
+        public String toString() {
+            return seq + ":" + kind + ((element == null) ? "" : " " + element);
+        }
+    }
+
+    // consecutive changes handed out together
+    public static final class ChangeBatch<E> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final long after; // the sequence number the reader asked to continue after
+        public final List<Change<E>> changes;
+
+        ChangeBatch(long after, List<Change<E>> changes) {
+            this.after = after;
+            this.changes = changes;
+        }
+
+        // where the next read should continue from
+        public long lastSeq() {
+            return changes.isEmpty() ? after : changes.get(changes.size() - 1).seq;
+        }
+
+        public boolean isEmpty() {
+            return changes.isEmpty();
+        }
+    }
+
+    /* the retained changes in a ring: change s sits at (s - 1) % retained while
+     * it is one of the last retained ones, so a reader's position is an index */
+    private final Change<E>[] ring;
+    private long lastSeq;   // the newest change, 0 before any
+    private long clearSeq;  // the newest clear, 0 if none
+    private int waiting;    // readers blocked in poll
+
+    public ChangeFeed() {
+        this(DEFAULT_RETAINED);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ChangeFeed(int retained) {
+        if (retained < 1) {
+            throw new IllegalArgumentException("must retain at least one change");
+        }
+        ring = (Change<E>[]) new Change[retained];
+    }
+
+    /* starts recording list's changes. The feed first records a clear and an
+     * add for every element already there, so a replica starting from 0 ends
+     * up with the same contents. Attaching again re-seeds the same way, which
+     * is how readers that fell out of the retained window catch up. A list
+     * reports to one listener only, so a list already reporting to something
+     * else is refused with an IllegalStateException rather than taken over.
+     * Call it from the thread that owns the list (ConcurrentSkipList.attach
+     * takes care of that for the concurrent one). */
+    public synchronized void attach(SkipList<E> list) {
+        if (list.changeListener() != null && list.changeListener() != this) {
+            throw new IllegalStateException("the list already reports its changes to another listener");
+        }
+        if (list.size() >= ring.length) {
+            throw new IllegalArgumentException("the feed retains fewer changes than the list has elements");
+        }
+        cleared();
+        for (E element : list) {
+            added(element);
+        }
+        list.setChangeListener(this);
+    }
+
+    public synchronized void added(E element) {
+        append(Kind.ADD, element);
+    }
+
+    public synchronized void removed(E element) {
+        append(Kind.REMOVE, element);
+    }
+
+    public synchronized void cleared() {
+        append(Kind.CLEAR, null);
+        clearSeq = lastSeq;
+    }
+
+    private void append(Kind kind, E element) {
+        lastSeq++;
+        ring[(int) ((lastSeq - 1) % ring.length)] = new Change<E>(lastSeq, kind, element);
+        if (waiting > 0) {
+            notifyAll();
+        }
+    }
+
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    // the oldest change still retained
+    public synchronized long oldestSeq() {
+        return Math.max(1, lastSeq - ring.length + 1);
+    }
+
+    /* up to max changes after the given sequence number, possibly none. If
+     * the next one is no longer retained the batch starts at the newest clear
+     * instead, which makes everything before it irrelevant; without one the
+     * reader cannot continue and gets an IllegalStateException. */
+    public synchronized ChangeBatch<E> read(long after, int max) {
+        if (after < 0 || after > lastSeq) {
+            throw new IllegalArgumentException("no change " + after + " in this feed");
+        }
+        long from = after + 1;
+        if (from < oldestSeq()) {
+            if (clearSeq < oldestSeq()) {
+                throw new IllegalStateException("changes after " + after + " are no longer retained, attach again to re-seed");
+            }
+            from = clearSeq;
+        }
+        int n = (int) Math.min(max, lastSeq - from + 1);
+        List<Change<E>> changes = new ArrayList<Change<E>>(n);
+        for (long seq = from; seq < from + n; seq++) {
+            changes.add(ring[(int) ((seq - 1) % ring.length)]);
+        }
+        return new ChangeBatch<E>(after, changes);
+    }
+
+    // like read, but waits up to timeout for a change after the given one
+    public synchronized ChangeBatch<E> poll(long after, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiting++;
+        try {
+            long left;
+            while (lastSeq <= after && (left = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+        } finally {
+            waiting--;
+        }
+        return read(after, max);
+    }
+
+    // Tests
+
+    private static <E> void applyAll(ChangeFeed<E> feed, ReplicaApplier<E> applier, int batchSize) {
+        while (applier.appliedSeq() < feed.lastSeq()) {
+            applier.apply(feed.read(applier.appliedSeq(), batchSize));
+        }
+    }
+
+    public static boolean testResumeFromSequence() {
+        SkipList<Integer> source = new SkipList<Integer>();
+        source.add(4);
+        source.add(2);
+        ChangeFeed<Integer> feed = new ChangeFeed<Integer>();
+        feed.attach(source); // seeds a clear and the two adds
+
+        source.add(7);
+        source.remove((Integer) 2);
+        ChangeBatch<Integer> first = feed.read(0, 3);
+        ChangeBatch<Integer> rest = feed.read(first.lastSeq(), 100);
+        if (first.changes.size() != 3 || first.changes.get(0).kind != Kind.CLEAR
+            || rest.changes.size() != 2 || rest.lastSeq() != feed.lastSeq())
+            return false;
+
+        ReplicaApplier<Integer> applier = new ReplicaApplier<Integer>(new SkipList<Integer>());
+        applier.apply(first);
+        applier.apply(first); // a redelivered batch changes nothing
+        applier.apply(rest);
+        source.clear();
+        source.add(1);
+        applyAll(feed, applier, 1);
+        if (!applier.replica().equals(source) || !feed.read(feed.lastSeq(), 10).isEmpty())
+            return false;
+
+        feed.attach(source); // the same feed again just re-seeds
+        try {
+            new ChangeFeed<Integer>().attach(source);
+            return false; // it would have silently cut the first feed off
+        } catch (IllegalStateException expected) {
+        }
+        return source.changeListener() == feed;
+    }
+
+    public static boolean testFallsForwardToClear() {
+        SkipList<Integer> source = new SkipList<Integer>();
+        ChangeFeed<Integer> feed = new ChangeFeed<Integer>(100);
+        feed.attach(source);
+        for (int i = 0; i < 300; i++) {
+            source.add(i);
+        }
+        try {
+            feed.read(0, 10);
+            return false; // the start is gone and there is no clear to continue from
+        } catch (IllegalStateException expected) {
+        }
+
+        source.clear(); // recorded like any other change
+        for (int i = 0; i < 50; i++) {
+            source.add(i * 3);
+        }
+        ReplicaApplier<Integer> applier = new ReplicaApplier<Integer>(new SkipList<Integer>());
+        applier.apply(feed.read(0, 1000)); // resumes at the clear
+        return applier.replica().equals(source);
+    }
+
+    public static boolean testReplicaFollowsLoopback() throws InterruptedException {
+        ConcurrentSkipList<Integer> source = new ConcurrentSkipList<Integer>();
+        ChangeFeed<Integer> feed = new ChangeFeed<Integer>();
+        source.attach(feed);
+        ConcurrentSkipList<Integer> replica = new ConcurrentSkipList<Integer>();
+        ReplicaApplier<Integer> applier = new ReplicaApplier<Integer>(replica);
+
+        Random rand = new Random(31);
+        try (LoopbackTransport<Integer> transport = new LoopbackTransport<Integer>(feed, applier, 256)) {
+            transport.start();
+            for (int i = 0; i < 20000; i++) {
+                int value = rand.nextInt(2000);
+                if (rand.nextInt(3) == 0) {
+                    source.remove((Integer) value);
+                } else {
+                    source.add(value);
+                }
+            }
+            // the replica trails by milliseconds, not by a copy interval
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (applier.appliedSeq() < feed.lastSeq() && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            return applier.appliedSeq() == feed.lastSeq()
+                && replica.equals(source)
+                && transport.batchesShipped() > 0
+                && transport.batchesShipped() < feed.lastSeq();
+        }
+    }
+
+    public static boolean testTransportKeepsFailure() throws InterruptedException {
+        SkipList<Integer> source = new SkipList<Integer>();
+        ChangeFeed<Integer> feed = new ChangeFeed<Integer>(100);
+        feed.attach(source);
+        for (int i = 0; i < 300; i++) { // the replica's starting point falls out of the window
+            source.add(i);
+        }
+        ReplicaApplier<Integer> applier = new ReplicaApplier<Integer>(new SkipList<Integer>());
+        try (LoopbackTransport<Integer> transport = new LoopbackTransport<Integer>(feed, applier, 64)) {
+            transport.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (transport.failure() == null && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            return transport.failure() instanceof IllegalStateException && applier.appliedSeq() == 0;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("resume from sequence: " + Boolean.toString(testResumeFromSequence()));
+        System.out.println("falls forward to clear: " + Boolean.toString(testFallsForwardToClear()));
+        System.out.println("replica follows loopback: " + Boolean.toString(testReplicaFollowsLoopback()));
+        System.out.println("transport keeps failure: " + Boolean.toString(testTransportKeepsFailure()));
+    }
+}
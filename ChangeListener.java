@@ -0,0 +1,11 @@
+/** Told about every change to a SkipList's contents, right after it is made */
+public interface ChangeListener<E> {
+    // element went in
+    void added(E element);
+
+    // one copy of element came out, by whichever remove, poll or expiry
+    void removed(E element);
+
+    // everything came out at once
+    void cleared();
+}
@@ -0,0 +1,414 @@
+/** Thread-safe SkipList with optimistic reads and exclusive writes */
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+public class ConcurrentSkipList<E> implements List<E> {
+    private final SkipList<E> list;
+    private final StampedLock lock = new StampedLock();
+
+    // contention metrics
+    private final LongAdder optimisticHits = new LongAdder();    // reads that validated first try
+    private final LongAdder optimisticMisses = new LongAdder();  // reads invalidated by a writer
+    private final LongAdder lockedReads = new LongAdder();       // reads that fell back to the read lock
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder writeWaitNanos = new LongAdder();    // time writers spent waiting for the lock
+
+    // how many optimistic attempts a reader makes before taking the read lock
+    private static final int OPTIMISTIC_ATTEMPTS = 2;
+
+    public ConcurrentSkipList() {
+        list = new SkipList<E>();
+    }
+
+    /* runs a read-only operation without locking, retrying if a writer got in
+     * the way, and finally falling back to the shared read lock */
+    private <T> T read(Supplier<T> op) {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0) { // a writer holds the lock right now
+                break;
+            }
+            T result;
+            try {
+                result = op.get();
+            } catch (RuntimeException e) {
+                // a torn read can trip over half-linked nodes; only real if the stamp is still valid
+                if (lock.validate(stamp)) {
+                    optimisticHits.increment();
+                    throw e;
+                }
+                optimisticMisses.increment();
+                continue;
+            }
+            if (lock.validate(stamp)) {
+                optimisticHits.increment();
+                return result;
+            }
+            optimisticMisses.increment();
+        }
+
+        lockedReads.increment();
+        long stamp = lock.readLock();
+        try {
+            return op.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // runs a mutating operation under the exclusive write lock
+    private <T> T write(Supplier<T> op) {
+        long start = System.nanoTime();
+        long stamp = lock.writeLock();
+        writeWaitNanos.add(System.nanoTime() - start);
+        writes.increment();
+        try {
+            return op.get();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Metrics
+
+    public long optimisticHits() {
+        return optimisticHits.sum();
+    }
+
+    public long optimisticMisses() {
+        return optimisticMisses.sum();
+    }
+
+    public long lockedReads() {
+        return lockedReads.sum();
+    }
+
+    public long writes() {
+        return writes.sum();
+    }
+
+    public long writeWaitNanos() {
+        return writeWaitNanos.sum();
+    }
+
+    public void resetMetrics() {
+        optimisticHits.reset();
+        optimisticMisses.reset();
+        lockedReads.reset();
+        writes.reset();
+        writeWaitNanos.reset();
+    }
+
+    // Reads
+
+    public int size() {
+        return read(() -> list.size());
+    }
+
+    public boolean isEmpty() {
+        return read(() -> list.isEmpty());
+    }
+
+    public boolean contains(Object o) {
+        return read(() -> list.contains(o));
+    }
+
+    public boolean containsAll(Collection<?> c) {
+        return read(() -> list.containsAll(c));
+    }
+
+    public E get(int index) {
+        return read(() -> list.get(index));
+    }
+
+    public E getQuantile(double quantile) {
+        return read(() -> list.getQuantile(quantile));
+    }
+
+    public E peekFirst() {
+        return read(() -> list.peekFirst());
+    }
+
+    public E peekLast() {
+        return read(() -> list.peekLast());
+    }
+
+    public int indexOf(Object o) {
+        return read(() -> list.indexOf(o));
+    }
+
+    public int lastIndexOf(Object o) {
+        return read(() -> list.lastIndexOf(o));
+    }
+
+    public SkipList.EqualRange equalRange(E e) {
+        return read(() -> list.equalRange(e));
+    }
+
+    public int countOf(E e) {
+        return read(() -> list.countOf(e));
+    }
+
+    public void enableFilter(double falsePositiveRate) {
+        write(() -> {
+            list.enableFilter(falsePositiveRate);
+            return null;
+        });
+    }
+
+    // lets feed record every change, made under the write lock so none slip past while it seeds
+    public void attach(ChangeFeed<E> feed) {
+        write(() -> {
+            feed.attach(list);
+            return null;
+        });
+    }
+
+    public void disableFilter() {
+        write(() -> {
+            list.disableFilter();
+            return null;
+        });
+    }
+
+    public void setKeyNormalizer(KeyNormalizer<? super E> normalizer) {
+        write(() -> {
+            list.setKeyNormalizer(normalizer);
+            return null;
+        });
+    }
+
+    public void setLevelGenerator(LevelGenerator levelGenerator) {
+        write(() -> {
+            list.setLevelGenerator(levelGenerator);
+            return null;
+        });
+    }
+
+    public long filterRejects() {
+        return list.filterRejects();
+    }
+
+    public long filterPasses() {
+        return list.filterPasses();
+    }
+
+    public long filterFalsePositives() {
+        return list.filterFalsePositives();
+    }
+
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        return read(() -> list.equals(o));
+    }
+
+    public int hashCode() {
+        // SkipList caches its hash in plain fields, so filling the cache is a write even
+        // though the contents stay the same; the write lock publishes it to later readers
+        long stamp = lock.writeLock();
+        try {
+            return list.hashCode();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // copies the current contents so iteration never sees a writer's partial update
+    @SuppressWarnings("unchecked")
+    private List<E> snapshot() {
+        return (List<E>) Arrays.asList(read(() -> list.toArray()));
+    }
+
+    public Object[] toArray() {
+        return read(() -> list.toArray());
+    }
+
+    public <T> T[] toArray(T[] a) {
+        return read(() -> list.toArray(a));
+    }
+
+    public void forEach(Consumer<? super E> action) {
+        snapshot().forEach(action);
+    }
+
+    // moves everything into c under one write lock
+    public int drainTo(Collection<? super E> c) {
+        return write(() -> list.drainTo(c));
+    }
+
+    public Iterator<E> iterator() {
+        return Collections.unmodifiableList(snapshot()).iterator();
+    }
+
+    public ListIterator<E> listIterator() {
+        return Collections.unmodifiableList(snapshot()).listIterator();
+    }
+
+    public ListIterator<E> listIterator(int index) {
+        return Collections.unmodifiableList(snapshot()).listIterator(index);
+    }
+
+    public List<E> subList(int fromIndex, int toIndex) {
+        return read(() -> list.subList(fromIndex, toIndex));
+    }
+
+    // Writes
+
+    public boolean add(E e) {
+        return write(() -> list.add(e));
+    }
+
+    public boolean addAll(Collection<? extends E> c) {
+        return write(() -> list.addAll(c));
+    }
+
+    /* adds the elements in order under one write lock, like addAll, except
+     * that one the list refuses (it does not compare with what is there, say)
+     * is passed over instead of ending the batch. Returns what each element
+     * threw, null for the ones that went in. */
+    public RuntimeException[] addEach(List<? extends E> elements) {
+        return write(() -> {
+            RuntimeException[] failures = new RuntimeException[elements.size()];
+            for (int i = 0; i < failures.length; i++) {
+                try {
+                    list.add(elements.get(i));
+                } catch (RuntimeException e) {
+                    failures[i] = e;
+                }
+            }
+            return failures;
+        });
+    }
+
+    public boolean remove(Object o) {
+        return write(() -> list.remove(o));
+    }
+
+    public E remove(int index) {
+        return write(() -> list.remove(index));
+    }
+
+    public int removeAllOccurrences(E e) {
+        return write(() -> list.removeAllOccurrences(e));
+    }
+
+    public int removeRange(int fromIndex, int toIndex) {
+        return write(() -> list.removeRange(fromIndex, toIndex));
+    }
+
+    public int removeRange(E fromKey, E toKey) {
+        return write(() -> list.removeRange(fromKey, toKey));
+    }
+
+    public E pollFirst() {
+        return write(() -> list.pollFirst());
+    }
+
+    public E pollLast() {
+        return write(() -> list.pollLast());
+    }
+
+    public boolean removeAll(Collection<?> c) {
+        return write(() -> list.removeAll(c));
+    }
+
+    public boolean retainAll(Collection<?> c) {
+        return write(() -> list.retainAll(c));
+    }
+
+    public void clear() {
+        write(() -> {
+            list.clear();
+            return null;
+        });
+    }
+
+    // positional writes make no sense in a sorted list, same as SkipList
+
+    public void add(int index, E e) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean addAll(int index, Collection<? extends E> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public E set(int index, E e) {
+        throw new UnsupportedOperationException();
+    }
+
+    // Tests
+
+    public static boolean testSingleThreaded() {
+        ConcurrentSkipList<Integer> list = new ConcurrentSkipList<Integer>();
+        list.add(7);
+        list.add(4);
+        list.add(10);
+        return list.size() == 3
+            && list.get(0) == 4
+            && list.contains(10)
+            && list.remove((Integer) 4)
+            && list.get(0) == 7
+            && list.writes() == 4
+            && list.optimisticHits() >= 3;
+    }
+
+    public static boolean testReadersAndWriters() {
+        final ConcurrentSkipList<Integer> list = new ConcurrentSkipList<Integer>();
+        final int perWriter = 2000;
+        Thread[] threads = new Thread[4];
+        final boolean[] failed = new boolean[1];
+
+        for (int t = 0; t < 2; t++) {
+            final int offset = t * perWriter;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    list.add(offset + i);
+                }
+            });
+        }
+        for (int t = 2; t < 4; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    int size = list.size();
+                    if (size > 0 && list.get(0) == null) {
+                        failed[0] = true;
+                    }
+                    list.contains(i);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            return false;
+        }
+
+        if (failed[0] || list.size() != 2 * perWriter) {
+            return false;
+        }
+        // everything must come back out in sorted order
+        int expected = 0;
+        for (int value : list) {
+            if (value != expected++) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("single threaded: " + Boolean.toString(testSingleThreaded()));
+        System.out.println("readers and writers: " + Boolean.toString(testReadersAndWriters()));
+    }
+}
@@ -0,0 +1,86 @@
+/** Counting Bloom filter: approximate membership that also supports removal */
+import java.util.Arrays;
+
+public class CountingBloomFilter {
+    private final byte[] counters; // unsigned, stuck at 255 once they get there
+    private final int hashes;
+    private final int capacity;    // insertions it was sized for
+    private final double fpp;
+
+    /* sized so that with capacity elements in it, a lookup of something
+     * absent comes back positive with probability about fpp */
+    public CountingBloomFilter(int capacity, double fpp) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (!(fpp > 0 && fpp < 1)) {
+            throw new IllegalArgumentException("false positive rate must be between 0 and 1");
+        }
+        long size = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.counters = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(64, size))];
+        this.hashes = Math.max(1, (int) Math.round((double) counters.length / capacity * Math.log(2)));
+        this.capacity = capacity;
+        this.fpp = fpp;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public double falsePositiveRate() {
+        return fpp;
+    }
+
+    // murmur3's 64 bit finalizer, so nearby hash codes land far apart
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // the i-th counter for a hash, by double hashing
+    private int slot(long h, int i) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        return Math.floorMod(h1 + i * h2, counters.length);
+    }
+
+    public void add(Object o) {
+        long h = mix(o.hashCode());
+        for (int i = 0; i < hashes; i++) {
+            int s = slot(h, i);
+            if (counters[s] != (byte) 0xff) {
+                counters[s]++;
+            }
+        }
+    }
+
+    // o must have been added; a saturated counter stays put since its true count is lost
+    public void remove(Object o) {
+        long h = mix(o.hashCode());
+        for (int i = 0; i < hashes; i++) {
+            int s = slot(h, i);
+            if (counters[s] != 0 && counters[s] != (byte) 0xff) {
+                counters[s]--;
+            }
+        }
+    }
+
+    // false means o was definitely never added (or removed since); true means it probably was
+    public boolean mightContain(Object o) {
+        long h = mix(o.hashCode());
+        for (int i = 0; i < hashes; i++) {
+            if (counters[slot(h, i)] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(counters, (byte) 0);
+    }
+}
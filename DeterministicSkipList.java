@@ -0,0 +1,434 @@
+/** Deterministic 1-2-3 skip list: no random heights, worst-case O(log n) search, add and remove */
+import java.util.*;
+
+public class DeterministicSkipList<E> extends AbstractList<E> {
+    // key of the last node on every level, greater than any element
+    private static final Object INF = new Object();
+
+    /* Every node above level 0 owns a gap: the run of nodes on the level
+     * below from its down pointer up to the next node's down pointer. Gaps
+     * always hold 1 to 3 nodes, which is what bounds the height at about
+     * log2(n) and every horizontal walk at 3 steps.
+     *
+     * Upper keys are separators: at least every key in the gap and less than
+     * every key in the following gaps. They may still name an element that
+     * has been removed, which does not hurt the search.
+     *
+     * Upper nodes also count the elements under their gap, so get descends by
+     * index in the same O(log n) steps as a search. */
+    private static final class DNode {
+        private Object key;
+        private ArrayList<Object> duplicates; // level 0 only: later elements comparing equal to key
+        private DNode right;
+        private DNode down;
+        private int below; // above level 0 only: elements under the gap, duplicates included
+
+        DNode(Object key, DNode right, DNode down) {
+            this.key = key;
+            this.right = right;
+            this.down = down;
+        }
+    }
+
+    private final DNode bottom; // what level 0 nodes point down to
+    private final DNode tail;   // what the last node of every level points right to
+    private DNode header;       // the only node on the top level
+    private int count;          // list size
+
+    public DeterministicSkipList() {
+        bottom = new DNode(null, null, null);
+        bottom.right = bottom;
+        bottom.down = bottom;
+        tail = new DNode(INF, null, null);
+        tail.right = tail;
+        tail.down = tail;
+        header = new DNode(INF, tail, new DNode(INF, tail, bottom));
+        count = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object x, Object key) {
+        if (key == INF) {
+            return -1;
+        }
+        return ((Comparable<Object>) x).compareTo(key);
+    }
+
+    // number of nodes in the gap below node
+    private int gapSize(DNode node) {
+        int size = 0;
+        for (DNode n = node.down; n != node.right.down; n = n.right) {
+            size++;
+        }
+        return size;
+    }
+
+    // elements a node stands for in its parent's gap: itself and its copies on level 0
+    private int weight(DNode node) {
+        if (node.down != bottom) {
+            return node.below;
+        }
+        if (node.key == INF) {
+            return 0;
+        }
+        return (node.duplicates == null) ? 1 : 1 + node.duplicates.size();
+    }
+
+    // the node in parent's gap whose own gap x belongs to
+    private DNode route(DNode parent, Object x) {
+        DNode end = parent.right.down;
+        DNode n = parent.down;
+        while (n.right != end && compare(x, n.key) > 0) {
+            n = n.right;
+        }
+        return n;
+    }
+
+    // the level 0 node holding x, or null
+    private DNode find(Object x) {
+        DNode cur = header;
+        while (cur.down.down != bottom) {
+            cur = route(cur, x);
+        }
+        DNode end = cur.right.down;
+        DNode n = cur.down;
+        while (n != end && compare(x, n.key) > 0) {
+            n = n.right;
+        }
+        return (n != end && compare(x, n.key) == 0) ? n : null;
+    }
+
+    public boolean add(E e) {
+        // a full top gap is split like any other, so grow a level above it first
+        if (gapSize(header) == 3) {
+            header = new DNode(INF, tail, header);
+            header.below = count;
+        }
+
+        // every node on the way down gets e under its gap
+        header.below++;
+        DNode cur = header;
+        while (cur.down.down != bottom) {
+            DNode c = route(cur, e);
+            if (compare(e, c.key) > 0) {
+                c.key = e; // e lands past a stale separator, so the separator moves up to e
+            }
+            if (gapSize(c) == 3) {
+                // promote the middle of the gap so there is room to descend into
+                DNode second = c.down.right;
+                DNode promoted = new DNode(c.key, c.right, second.right);
+                promoted.below = weight(second.right);
+                c.below -= promoted.below;
+                c.key = second.key;
+                c.right = promoted;
+                if (compare(e, c.key) > 0) {
+                    c = promoted;
+                }
+            }
+            c.below++;
+            cur = c;
+        }
+
+        // cur's gap on level 0 has at most 2 nodes, so there is room for e
+        DNode end = cur.right.down;
+        DNode prev = null;
+        DNode n = cur.down;
+        while (n != end && compare(e, n.key) > 0) {
+            prev = n;
+            n = n.right;
+        }
+        if (n != end && compare(e, n.key) == 0) {
+            if (n.duplicates == null) {
+                n.duplicates = new ArrayList<Object>(2);
+            }
+            n.duplicates.add(e);
+        } else if (prev != null) {
+            prev.right = new DNode(e, n, bottom);
+        } else {
+            // e goes first in the gap; shift the first node's contents into a new
+            // node behind it so the pointer from above keeps pointing at the front
+            DNode moved = new DNode(n.key, n.right, bottom);
+            moved.duplicates = n.duplicates;
+            n.key = e;
+            n.duplicates = null;
+            n.right = moved;
+        }
+        count++;
+        return true;
+    }
+
+    public boolean contains(Object o) {
+        return find(o) != null;
+    }
+
+    public boolean remove(Object o) {
+        DNode found = find(o);
+        if (found == null) {
+            return false;
+        }
+
+        if (found.duplicates != null) { // drop one copy, the structure stays as it is
+            if (found.key.equals(o)) {
+                found.key = found.duplicates.remove(0);
+            } else if (!found.duplicates.remove(o)) {
+                return false;
+            }
+            if (found.duplicates.isEmpty()) {
+                found.duplicates = null;
+            }
+            // the same route find took, one element lighter all the way down
+            for (DNode cur = header; cur.down != bottom; cur = route(cur, o)) {
+                cur.below--;
+            }
+            count--;
+            return true;
+        }
+        if (!found.key.equals(o)) {
+            return false;
+        }
+
+        lowerHeader();
+        header.below--;
+        DNode cur = header;
+        while (cur.down.down != bottom) {
+            DNode c = route(cur, o);
+            if (gapSize(c) == 1) {
+                c = widen(cur, c);
+            }
+            c.below--;
+            cur = c;
+        }
+
+        // cur's gap on level 0 has at least 2 nodes, so it survives losing one
+        DNode prev = null;
+        DNode n = cur.down;
+        while (compare(o, n.key) != 0) {
+            prev = n;
+            n = n.right;
+        }
+        if (prev != null) {
+            prev.right = n.right;
+        } else {
+            // n is pointed at from above, so pull its successor's contents into it instead
+            DNode next = n.right;
+            n.key = next.key;
+            n.duplicates = next.duplicates;
+            n.right = next.right;
+        }
+        count--;
+        lowerHeader();
+        return true;
+    }
+
+    /* c's gap has one node; borrow one from a sibling's gap or merge with a
+     * sibling so it has two. Returns the node that now owns the old gap. */
+    private DNode widen(DNode parent, DNode c) {
+        DNode end = parent.right.down;
+        if (c.right != end) {
+            DNode r = c.right;
+            if (gapSize(r) >= 2) { // borrow r's first node
+                DNode moved = r.down;
+                r.down = moved.right;
+                c.key = moved.key;
+                r.below -= weight(moved);
+                c.below += weight(moved);
+            } else { // merge r into c
+                c.key = r.key;
+                c.right = r.right;
+                c.below += r.below;
+            }
+            return c;
+        }
+
+        // c is the last in parent's gap, which has at least 2 nodes, so use the left sibling
+        DNode l = parent.down;
+        while (l.right != c) {
+            l = l.right;
+        }
+        if (gapSize(l) >= 2) { // borrow l's last node
+            DNode beforeLast = l.down;
+            while (beforeLast.right.right != c.down) {
+                beforeLast = beforeLast.right;
+            }
+            l.key = beforeLast.key;
+            c.down = beforeLast.right;
+            l.below -= weight(c.down);
+            c.below += weight(c.down);
+            return c;
+        }
+        // merge c into l
+        l.key = c.key;
+        l.right = c.right;
+        l.below += c.below;
+        return l;
+    }
+
+    // drops top levels that only have one node under the header
+    private void lowerHeader() {
+        while (header.down.down != bottom && gapSize(header) == 1) {
+            header = header.down;
+        }
+    }
+
+    // first node on level 0
+    private DNode first() {
+        DNode n = header;
+        while (n.down != bottom) {
+            n = n.down;
+        }
+        return n;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("chosen index is out of bounds");
+        }
+        // at most 3 steps per level, skipping whole gaps by their counts
+        DNode cur = header;
+        while (true) {
+            DNode n = cur.down;
+            while (index >= weight(n)) {
+                index -= weight(n);
+                n = n.right;
+            }
+            if (n.down == bottom) {
+                return (E) ((index == 0) ? n.key : n.duplicates.get(index - 1));
+            }
+            cur = n;
+        }
+    }
+
+    public E getQuantile(double quantile) {
+        if (quantile >= 1 || quantile < 0) {
+            throw new IndexOutOfBoundsException("Quantile is out of range");
+        }
+        return get((int) (count * quantile));
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void clear() {
+        header = new DNode(INF, tail, new DNode(INF, tail, bottom));
+        count = 0;
+    }
+
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private DNode node = first();
+            private int copy = 0; // 0 is node.key, after that node.duplicates
+
+            public boolean hasNext() {
+                return node.key != INF;
+            }
+
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Object value = (copy == 0) ? node.key : node.duplicates.get(copy - 1);
+                copy++;
+                if (node.duplicates == null || copy > node.duplicates.size()) {
+                    node = node.right;
+                    copy = 0;
+                }
+                return (E) value;
+            }
+        };
+    }
+
+    // number of levels including level 0
+    public int height() {
+        int height = 0;
+        for (DNode n = header.down; n != bottom; n = n.down) {
+            height++;
+        }
+        return height;
+    }
+
+    /* checks every gap below the header holds 1 to 3 nodes and the elements
+     * it counts, and that level 0 is sorted */
+    private boolean checkStructure() {
+        if (header.below != count) {
+            return false;
+        }
+        for (DNode level = header; level.down != bottom; level = level.down) {
+            for (DNode n = level; n != tail; n = n.right) {
+                int gap = gapSize(n);
+                if (gap < 1 || (gap > 3 && n != header)) {
+                    return false;
+                }
+                int under = 0;
+                for (DNode m = n.down; m != n.right.down; m = m.right) {
+                    under += weight(m);
+                }
+                if (under != n.below) {
+                    return false;
+                }
+            }
+        }
+        DNode prev = null;
+        for (DNode n = first(); n.key != INF; n = n.right) {
+            if (prev != null && compare(prev.key, n.key) >= 0) {
+                return false;
+            }
+            prev = n;
+        }
+        return true;
+    }
+
+    // Tests
+
+    public static boolean testMatchesSortedList() {
+        DeterministicSkipList<Integer> list = new DeterministicSkipList<Integer>();
+        List<Integer> expected = new ArrayList<Integer>();
+        Random rand = new Random(11);
+
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 1500; i++) {
+                int value = rand.nextInt(1000);
+                list.add(value);
+                expected.add(value);
+            }
+            for (int i = 0; i < 1200; i++) {
+                Integer value = rand.nextInt(1000);
+                if (list.remove(value) != expected.remove(value)) {
+                    return false;
+                }
+            }
+            if (!list.checkStructure()) {
+                return false;
+            }
+        }
+        Collections.sort(expected);
+        for (int i = 0; i < expected.size(); i++) {
+            if (!list.get(i).equals(expected.get(i))) {
+                return false;
+            }
+        }
+        return list.equals(expected) && list.contains(expected.get(0)) && !list.contains(1000);
+    }
+
+    public static boolean testHeightIsLogarithmic() {
+        DeterministicSkipList<Integer> list = new DeterministicSkipList<Integer>();
+        int n = 1 << 14;
+        for (int i = 0; i < n; i++) { // ascending input, the worst case for a naive list
+            list.add(i);
+        }
+        if (!list.checkStructure() || list.height() > 16) {
+            return false;
+        }
+        for (int i = 0; i < n - 1; i++) {
+            list.remove((Integer) i);
+        }
+        return list.checkStructure() && list.size() == 1 && list.get(0) == n - 1 && list.height() <= 2;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("matches sorted list: " + Boolean.toString(testMatchesSortedList()));
+        System.out.println("height is logarithmic: " + Boolean.toString(testHeightIsLogarithmic()));
+    }
+}
@@ -0,0 +1,275 @@
+/** SkipList whose elements expire a fixed time after they are added.
+ *  Not thread-safe, and reads are no exception: contains, peekFirst,
+ *  peekLast and iterator expire overdue elements first, which removes them
+ *  from the list, so callers sharing one across threads must synchronize
+ *  even when they only read. */
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+public class ExpiringSkipList<E> extends SkipList<E> {
+    private static final int LAZY_BATCH = 64; // most expiries a single read pays for
+
+    /* one element's deadline. The index orders them by time, ties broken by
+     * arrival, so with a fixed ttl every new deadline takes the append path. */
+    private static final class Deadline<E> implements Comparable<Deadline<E>> {
+        private final long at;  // clock reading the element expires at
+        private final long seq;
+        private final E element;
+
+        Deadline(long at, long seq, E element) {
+            this.at = at;
+            this.seq = seq;
+            this.element = element;
+        }
+
+        public int compareTo(Deadline<E> other) {
+            long diff = at - other.at; // nanoTime style readings only compare by difference
+            if (diff != 0) {
+                return (diff < 0) ? -1 : 1;
+            }
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+    private final long defaultTtl;   // in nanoseconds
+    private final LongSupplier clock; // current time in nanoseconds
+    private final SkipList<Deadline<E>> deadlines = new SkipList<Deadline<E>>();
+    private long seq;
+
+    /* copies taken out before their deadline, by value. Copies that compare
+     * equal are interchangeable, so the deadline that comes up next for such a
+     * value is simply dropped instead of searching the index for it. */
+    private final HashMap<Object, Integer> removedEarly = new HashMap<Object, Integer>();
+
+    private Consumer<? super E> onExpire; // told about every expired element, may be null
+    private long expired;
+
+    public ExpiringSkipList(long ttl, TimeUnit unit) {
+        this(ttl, unit, System::nanoTime);
+    }
+
+    // clock gives the time in nanoseconds, so tests can move it by hand
+    public ExpiringSkipList(long ttl, TimeUnit unit, LongSupplier clock) {
+        super();
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        this.defaultTtl = unit.toNanos(ttl);
+        this.clock = clock;
+    }
+
+    public void setExpirationListener(Consumer<? super E> onExpire) {
+        this.onExpire = onExpire;
+    }
+
+    public boolean add(E e) {
+        return add(e, defaultTtl, TimeUnit.NANOSECONDS);
+    }
+
+    // adds e with its own time to live instead of the list's
+    public boolean add(E e, long ttl, TimeUnit unit) {
+        long now = clock.getAsLong();
+        expireBefore(now, LAZY_BATCH);
+        super.add(e);
+        deadlines.add(new Deadline<E>(now + unit.toNanos(ttl), seq++, e));
+        return true;
+    }
+
+    /* removes up to max elements whose deadline has passed and returns how
+     * many went. Each one costs a poll of the index and a removal from the
+     * list, so a timer calling this with a modest max keeps up with a high
+     * expiry rate in small slices rather than one long pause. */
+    public int expireBatch(int max) {
+        return expireBefore(clock.getAsLong(), max);
+    }
+
+    // removes everything whose deadline has passed
+    public int expire() {
+        return expireBatch(Integer.MAX_VALUE);
+    }
+
+    private int expireBefore(long now, int max) {
+        int count = 0;
+        while (count < max && !deadlines.isEmpty() && deadlines.peekFirst().at - now <= 0) {
+            E element = deadlines.pollFirst().element;
+            Integer early = removedEarly.get(element);
+            if (early != null) { // this copy already left through a remove
+                if (early == 1) {
+                    removedEarly.remove(element);
+                } else {
+                    removedEarly.put(element, early - 1);
+                }
+                continue;
+            }
+            super.remove(element);
+            expired++;
+            count++;
+            if (onExpire != null) {
+                onExpire.accept(element);
+            }
+        }
+        return count;
+    }
+
+    // deadlines still in the index, including ones for copies removed early
+    public int pendingDeadlines() {
+        return deadlines.size();
+    }
+
+    public long expiredCount() {
+        return expired;
+    }
+
+    // Lazy expiry: lookups and iteration first clear a bounded batch of overdue elements.
+    // Positional reads do not, so indexes stay put between calls.
+
+    public boolean contains(Object o) {
+        expireBatch(LAZY_BATCH);
+        return super.contains(o);
+    }
+
+    public E peekFirst() {
+        expireBatch(LAZY_BATCH);
+        return super.peekFirst();
+    }
+
+    public E peekLast() {
+        expireBatch(LAZY_BATCH);
+        return super.peekLast();
+    }
+
+    public Iterator<E> iterator() {
+        expireBatch(LAZY_BATCH);
+        return super.iterator();
+    }
+
+    // Removals before the deadline
+
+    private void removedEarly(Object o, int copies) {
+        removedEarly.merge(o, copies, Integer::sum);
+    }
+
+    public boolean remove(Object o) {
+        if (!super.remove(o)) {
+            return false;
+        }
+        removedEarly(o, 1);
+        return true;
+    }
+
+    public E remove(int index) {
+        E removed = super.remove(index); // pollFirst comes through here too
+        removedEarly(removed, 1);
+        return removed;
+    }
+
+    public E pollLast() {
+        E removed = super.pollLast();
+        if (removed != null) {
+            removedEarly(removed, 1);
+        }
+        return removed;
+    }
+
+    public int removeAllOccurrences(E e) {
+        int removed = super.removeAllOccurrences(e);
+        if (removed > 0) {
+            removedEarly(e, removed);
+        }
+        return removed;
+    }
+
+    // both removeRanges come through here, as the range is unlinked; the deadlines stay behind
+    protected void removedInRange(E e) {
+        removedEarly(e, 1);
+    }
+
+    public void clear() {
+        super.clear();
+        deadlines.clear();
+        removedEarly.clear();
+    }
+
+    // Tests
+
+    public static boolean testExpiresInDeadlineOrder() {
+        final long[] now = {0};
+        ExpiringSkipList<Integer> list = new ExpiringSkipList<Integer>(10, TimeUnit.SECONDS, () -> now[0]);
+        final List<Integer> gone = new ArrayList<Integer>();
+        list.setExpirationListener(gone::add);
+
+        list.add(5);
+        list.add(1);
+        now[0] = TimeUnit.SECONDS.toNanos(4);
+        list.add(3);
+        list.add(9, 1, TimeUnit.SECONDS);  // its own, shorter ttl
+
+        now[0] = TimeUnit.SECONDS.toNanos(6);
+        if (list.expire() != 1 || !gone.equals(Arrays.asList(9)))
+            return false;
+        now[0] = TimeUnit.SECONDS.toNanos(10);
+        if (list.expireBatch(1) != 1 || list.expire() != 1 || list.size() != 1)
+            return false;
+        now[0] = TimeUnit.SECONDS.toNanos(14);
+        return list.expire() == 1
+            && list.isEmpty()
+            && list.pendingDeadlines() == 0
+            && list.expiredCount() == 4
+            && gone.equals(Arrays.asList(9, 5, 1, 3));
+    }
+
+    public static boolean testEarlyRemovalAndDuplicates() {
+        final long[] now = {0};
+        ExpiringSkipList<Integer> list = new ExpiringSkipList<Integer>(10, TimeUnit.SECONDS, () -> now[0]);
+        list.add(1000);
+        now[0] = TimeUnit.SECONDS.toNanos(5);
+        list.add(1000);
+        list.add(2000);
+        list.remove((Integer) 1000);  // one copy leaves now, the other still has a deadline
+        list.pollLast();
+
+        now[0] = TimeUnit.SECONDS.toNanos(12);
+        // the first deadline for 1000 is the copy already removed, so the other stays
+        if (list.expire() != 0 || list.countOf(1000) != 1)
+            return false;
+        now[0] = TimeUnit.SECONDS.toNanos(16);
+        if (list.expire() != 1 || !list.isEmpty())
+            return false;
+
+        list.add(1);
+        list.add(2);
+        list.add(3);
+        list.add(4);
+        list.add(5);
+        list.removeRange(0, 2); // a range removed early leaves its deadlines too
+        list.removeRange((Integer) 4, (Integer) 6);
+        now[0] = TimeUnit.SECONDS.toNanos(26);
+        return list.expire() == 1 && list.isEmpty() && list.pendingDeadlines() == 0;
+    }
+
+    public static boolean testLazyExpiryOnRead() {
+        final long[] now = {0};
+        ExpiringSkipList<Integer> list = new ExpiringSkipList<Integer>(1, TimeUnit.MINUTES, () -> now[0]);
+        int n = 200000;
+        for (int i = 0; i < n; i++) {
+            list.add(i);
+        }
+        now[0] = TimeUnit.MINUTES.toNanos(2);
+        // a read only pays for one small batch, and it starts with the oldest
+        if (list.contains(0) || list.size() != n - LAZY_BATCH)
+            return false;
+        int removed = 0;
+        while (list.pendingDeadlines() > 0) {
+            removed += list.expireBatch(10000);
+        }
+        return removed == n - LAZY_BATCH && list.isEmpty() && list.expiredCount() == n;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("expires in deadline order: " + Boolean.toString(testExpiresInDeadlineOrder()));
+        System.out.println("early removal and duplicates: " + Boolean.toString(testEarlyRemovalAndDuplicates()));
+        System.out.println("lazy expiry on read: " + Boolean.toString(testLazyExpiryOnRead()));
+    }
+}
@@ -0,0 +1,67 @@
+/** Maps keys to 64 bit prefixes whose unsigned order agrees with the keys' own, used for SkipList's cached node prefixes */
+import java.nio.ByteBuffer;
+
+public interface KeyNormalizer<E> {
+    /* a prefix such that a.compareTo(b) < 0 implies
+     * Long.compareUnsigned(prefix(a), prefix(b)) <= 0. Different prefixes
+     * settle a comparison on their own; equal ones leave it to compareTo. */
+    long prefix(E key);
+
+    // exact for every Long: equal prefixes only for equal keys
+    static KeyNormalizer<Long> longs() {
+        return new KeyNormalizer<Long>() {
+            public long prefix(Long key) {
+                return key ^ Long.MIN_VALUE; // moves the sign so negatives come first unsigned
+            }
+        };
+    }
+
+    static KeyNormalizer<Integer> integers() {
+        return new KeyNormalizer<Integer>() {
+            public long prefix(Integer key) {
+                return (long) key ^ Long.MIN_VALUE;
+            }
+        };
+    }
+
+    // exact as well, in Double.compareTo's order: -0.0 before 0.0 and NaN last
+    static KeyNormalizer<Double> doubles() {
+        return new KeyNormalizer<Double>() {
+            public long prefix(Double key) {
+                long bits = Double.doubleToLongBits(key);
+                // negatives count down as their bits go up, so all their bits flip
+                return bits ^ ((bits >> 63) | Long.MIN_VALUE);
+            }
+        };
+    }
+
+    // the first four chars, 16 bits each; shorter strings pad with zeros, which sort first
+    static KeyNormalizer<String> strings() {
+        return new KeyNormalizer<String>() {
+            public long prefix(String key) {
+                long prefix = 0;
+                for (int i = 0; i < 4; i++) {
+                    prefix = (prefix << 16) | ((i < key.length()) ? key.charAt(i) : 0);
+                }
+                return prefix;
+            }
+        };
+    }
+
+    /* the first eight remaining bytes, for byte array keys wrapped with
+     * ByteBuffer.wrap. ByteBuffer compares bytes signed, so each one has its
+     * sign bit flipped to sort the same way unsigned. */
+    static KeyNormalizer<ByteBuffer> bytes() {
+        return new KeyNormalizer<ByteBuffer>() {
+            public long prefix(ByteBuffer key) {
+                long prefix = 0;
+                int at = key.position();
+                for (int i = 0; i < 8; i++) {
+                    int b = (at + i < key.limit()) ? (key.get(at + i) ^ 0x80) & 0xFF : 0;
+                    prefix = (prefix << 8) | b;
+                }
+                return prefix;
+            }
+        };
+    }
+}
@@ -0,0 +1,109 @@
+/** Log-linear latency histogram in the style of HdrHistogram: fixed memory, about 1.6% relative error */
+
+public class LatencyHistogram {
+    /* values below 128 get a bucket each; above that every power of two is
+     * split into 64 equal buckets, so a bucket is never wider than 1/64 of
+     * the values in it */
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT / 2;
+    private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * HALF;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    private static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift); // in [HALF, SUB_COUNT)
+        return SUB_COUNT + (shift - 1) * HALF + (sub - HALF);
+    }
+
+    // the largest value that lands in bucket i
+    private static long highestIn(int i) {
+        if (i < SUB_COUNT) {
+            return i;
+        }
+        int shift = (i - SUB_COUNT) / HALF + 1;
+        long sub = (i - SUB_COUNT) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    // records one latency in nanoseconds; negative readings count as 0
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    // adds everything other recorded into this one
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public long min() {
+        return (total == 0) ? 0 : min;
+    }
+
+    public double mean() {
+        return (total == 0) ? 0 : (double) sum / total;
+    }
+
+    // the value at or below which percentile percent of the recordings fall, never above the max
+    public long percentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static String micros(double nanos) {
+        return String.format("%.2f", nanos / 1000);
+    }
+
+    // one line with the usual percentiles, in microseconds
+    public String summary() {
+        return "count=" + total
+            + " mean=" + micros(mean())
+            + " p50=" + micros(percentile(50))
+            + " p90=" + micros(percentile(90))
+            + " p99=" + micros(percentile(99))
+            + " p99.9=" + micros(percentile(99.9))
+            + " p99.99=" + micros(percentile(99.99))
+            + " max=" + micros(max) + " us";
+    }
+
+    public String toString() {
+        return summary();
+    }
+}
@@ -0,0 +1,78 @@
+/** Picks the height of each new skip list node */
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+public interface LevelGenerator {
+    // the classic shape: each level holds half the nodes of the one below, up to 30 levels
+    LevelGenerator DEFAULT = geometric(0.5, 30);
+
+    // a height from 1 to maxLevel(), reaching each level with probability p of reaching the one below
+    int nextLevel();
+
+    int maxLevel();
+
+    /* a generator for another thread, such as one chunk of a parallel build.
+     * A seeded one hands out a new seed from its own sequence, so splitting
+     * the same way gives the same heights again. The default shares this
+     * one, which suits generators that are safe to call from any thread. */
+    default LevelGenerator split() {
+        return this;
+    }
+
+    // draws from the calling thread's own ThreadLocalRandom, so inserting threads never contend
+    static LevelGenerator geometric(double p, int maxLevel) {
+        return new Geometric(p, maxLevel, null);
+    }
+
+    /* the same sequence of heights for the same seed, for reproducible
+     * benchmarks. Meant for one thread at a time. */
+    static LevelGenerator seeded(double p, int maxLevel, long seed) {
+        return new Geometric(p, maxLevel, new SplittableRandom(seed));
+    }
+
+    /* one random word per height. When p is 1/2, 1/4, 1/8 ... each level
+     * takes a fixed number of leading zero bits, so the height is a leading
+     * zero count; any other p inverts the geometric distribution with a log. */
+    final class Geometric implements LevelGenerator {
+        private final double p;
+        private final int maxLevel;
+        private final int bitsPerLevel; // 0 when p is not a power of 1/2
+        private final double logP;
+        private final SplittableRandom seeded; // null for per-thread draws
+
+        Geometric(double p, int maxLevel, SplittableRandom seeded) {
+            if (!(p > 0 && p < 1)) {
+                throw new IllegalArgumentException("p must be between 0 and 1");
+            }
+            if (maxLevel < 1) {
+                throw new IllegalArgumentException("need at least one level");
+            }
+            this.p = p;
+            this.maxLevel = maxLevel;
+            int exponent = Math.getExponent(p);
+            this.bitsPerLevel = (p == Math.scalb(1.0, exponent)) ? -exponent : 0;
+            this.logP = Math.log(p);
+            this.seeded = seeded;
+        }
+
+        public int nextLevel() {
+            long word = (seeded == null) ? ThreadLocalRandom.current().nextLong() : seeded.nextLong();
+            int height;
+            if (bitsPerLevel > 0) {
+                height = 1 + Long.numberOfLeadingZeros(word) / bitsPerLevel;
+            } else {
+                double u = (word >>> 11) * 0x1.0p-53; // uniform in [0, 1)
+                height = 1 + (int) (Math.log1p(-u) / logP);
+            }
+            return Math.min(height, maxLevel);
+        }
+
+        public int maxLevel() {
+            return maxLevel;
+        }
+
+        public LevelGenerator split() {
+            return (seeded == null) ? this : new Geometric(p, maxLevel, seeded.split());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/** Ships ChangeFeed batches to a ReplicaApplier on a background thread, through bytes like a socket would */
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+public class LoopbackTransport<E> implements AutoCloseable {
+    private static final long POLL_MILLIS = 50; // how long the shipper waits for changes before checking it should stop
+
+    private final ChangeFeed<E> feed;
+    private final ReplicaApplier<E> applier;
+    private final int maxBatch;
+    private Thread shipper;
+    private volatile boolean running;
+    private volatile RuntimeException failure; // what stopped the shipper, if anything did
+    private volatile long batches;
+    private volatile long bytes;
+
+    public LoopbackTransport(ChangeFeed<E> feed, ReplicaApplier<E> applier, int maxBatch) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("batches need room for at least one change");
+        }
+        this.feed = feed;
+        this.applier = applier;
+        this.maxBatch = maxBatch;
+    }
+
+    /* starts shipping from where the applier left off. Every batch the feed
+     * has ready goes out at once, so under load batches fill up and when it is
+     * quiet a single change goes out as soon as it is made. */
+    public synchronized void start() {
+        if (shipper != null) {
+            return;
+        }
+        running = true;
+        shipper = new Thread(() -> {
+            try {
+                while (running) {
+                    ChangeFeed.ChangeBatch<E> batch = feed.poll(applier.appliedSeq(), maxBatch, POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (!batch.isEmpty()) {
+                        applier.apply(decode(encode(batch)));
+                        batches++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (RuntimeException e) {
+                // the feed or the applier gave up, and retrying would only hit the same change
+                failure = e;
+                running = false;
+            }
+        }, "loopback-transport");
+        shipper.setDaemon(true);
+        shipper.start();
+    }
+
+    private byte[] encode(ChangeFeed.ChangeBatch<E> batch) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(batch);
+        } catch (IOException e) {
+            throw new UncheckedIOException("elements must be Serializable to cross the transport", e);
+        }
+        bytes += buffer.size();
+        return buffer.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private ChangeFeed.ChangeBatch<E> decode(byte[] data) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (ChangeFeed.ChangeBatch<E>) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("could not decode a batch", e);
+        }
+    }
+
+    public long batchesShipped() {
+        return batches;
+    }
+
+    public long bytesShipped() {
+        return bytes;
+    }
+
+    /* the exception that stopped shipping, or null while it runs (or after a
+     * plain close). A reader that fell out of the feed's window, an element
+     * that is not Serializable and a gap the applier refuses all end up here. */
+    public RuntimeException failure() {
+        return failure;
+    }
+
+    // stops the shipper and waits for it; an interrupt while waiting is passed on to the caller's thread
+    public synchronized void close() {
+        if (shipper == null) {
+            return;
+        }
+        running = false;
+        shipper.interrupt();
+        try {
+            shipper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        shipper = null;
+    }
+}
@@ -0,0 +1,45 @@
+/** An associative summary of elements with an identity, used for SkipList range aggregates */
+public interface Monoid<E, A> {
+    // the summary of no elements
+    A identity();
+
+    // the summary of a single element
+    A of(E element);
+
+    // the summary of left's elements followed by right's; must be associative
+    A combine(A left, A right);
+
+    // how many elements there are
+    static <E> Monoid<E, Long> count() {
+        return new Monoid<E, Long>() {
+            public Long identity() {
+                return 0L;
+            }
+
+            public Long of(E element) {
+                return 1L;
+            }
+
+            public Long combine(Long left, Long right) {
+                return left + right;
+            }
+        };
+    }
+
+    // the sum of numeric elements
+    static <E extends Number> Monoid<E, Double> sum() {
+        return new Monoid<E, Double>() {
+            public Double identity() {
+                return 0.0;
+            }
+
+            public Double of(E element) {
+                return element.doubleValue();
+            }
+
+            public Double combine(Double left, Double right) {
+                return left + right;
+            }
+        };
+    }
+}
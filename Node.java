@@ -1,29 +1,48 @@
 /** This is the node implementation which is used by the list */
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Node<E> {
-    private static final double P = 0.5;
-    private static final int MAX_LEVELS = 30;
-
     private E data; // value stored in this element
     private ArrayList<Node<E>> nextNodes; // ref to next
+    private Object[] aggregates; // per level summary of this node up to next(level), only for lists with a Monoid
+    private long[] hashes; // per level List.hashCode part of this node up to next(level), only for lists once hashed
+    private int[] spans; // per level count of level 0 steps from this node to next(level), the list end counting as one past the last
+    private long prefix; // normalized key prefix, only for lists with a KeyNormalizer
 
     public Node(E v) {
+        this(v, LevelGenerator.DEFAULT.nextLevel());
+    }
+
+    public Node(E v, int height) {
         data = v;
-        int height = 1;
-        while (Math.random() < P && height < MAX_LEVELS) {
-            height++;
-        }
         nextNodes = new ArrayList<Node<E>>(height);
         for (int i = 0; i < height; i++) {
             nextNodes.add(i,null);
         }
+        spans = new int[height];
     }
 
     public int levels() {
         return nextNodes.size();
     }
 
+    // changes the height, keeping the links on the levels that remain
+    public void setLevels(int height) {
+        ArrayList<Node<E>> resized = new ArrayList<Node<E>>(height);
+        for (int i = 0; i < height; i++) {
+            resized.add(i, (i < nextNodes.size()) ? nextNodes.get(i) : null);
+        }
+        nextNodes = resized;
+        spans = Arrays.copyOf(spans, height);
+        if (aggregates != null) {
+            aggregates = Arrays.copyOf(aggregates, height);
+        }
+        if (hashes != null) {
+            hashes = Arrays.copyOf(hashes, height);
+        }
+    }
+
     public Node<E> next(int level) {
         return nextNodes.get(level);
     }
@@ -39,4 +58,42 @@ public class Node<E> {
     public void setValue(E value) {
         data = value;
     }
+
+    public long prefix() {
+        return prefix;
+    }
+
+    public void setPrefix(long prefix) {
+        this.prefix = prefix;
+    }
+
+    public int span(int level) {
+        return spans[level];
+    }
+
+    public void setSpan(int level, int span) {
+        spans[level] = span;
+    }
+
+    public Object aggregate(int level) {
+        return aggregates[level];
+    }
+
+    public void setAggregate(int level, Object aggregate) {
+        if (aggregates == null) {
+            aggregates = new Object[nextNodes.size()];
+        }
+        aggregates[level] = aggregate;
+    }
+
+    public long hash(int level) {
+        return hashes[level];
+    }
+
+    public void setHash(int level, long hash) {
+        if (hashes == null) {
+            hashes = new long[nextNodes.size()];
+        }
+        hashes[level] = hash;
+    }
 }
@@ -0,0 +1,317 @@
+/** Approximate quantiles in fixed memory: a t-digest whose centroids are kept in a SkipList */
+import java.util.*;
+
+public class QuantileSketch {
+    private static final int DEFAULT_COMPRESSION = 100;
+    private static final int BUFFER_FACTOR = 5; // buffered points per unit of compression
+
+    /* a run of nearby samples summed up as their mean and count. seq makes
+     * every centroid distinct, so equal means still sort and remove cleanly. */
+    private static final class Centroid implements Comparable<Centroid> {
+        private final double mean;
+        private final long weight;
+        private final long seq;
+
+        Centroid(double mean, long weight, long seq) {
+            this.mean = mean;
+            this.weight = weight;
+            this.seq = seq;
+        }
+
+        public int compareTo(Centroid other) {
+            int c = Double.compare(mean, other.mean);
+            return (c != 0) ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    // total weight of a run of centroids, so the index answers rank questions from its upper levels
+    private static final Monoid<Centroid, Long> WEIGHT = new Monoid<Centroid, Long>() {
+        public Long identity() {
+            return 0L;
+        }
+
+        public Long of(Centroid c) {
+            return c.weight;
+        }
+
+        public Long combine(Long left, Long right) {
+            return left + right;
+        }
+    };
+
+    private final double compression;
+    private SkipList<Centroid> centroids = new SkipList<Centroid>(WEIGHT);
+    private long seq;
+
+    // points not yet merged into the centroids
+    private final double[] bufferMeans;
+    private final long[] bufferWeights;
+    private int buffered;
+
+    private long total; // samples seen, buffered or not
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public QuantileSketch() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    /* compression bounds the size: there are never more than about
+     * compression centroids, whatever the stream length. The rank error is
+     * roughly 1 / compression around the median and shrinks toward the
+     * tails, so p99 and p999 stay sharp. */
+    public QuantileSketch(double compression) {
+        if (compression < 10) {
+            throw new IllegalArgumentException("compression must be at least 10");
+        }
+        this.compression = compression;
+        int capacity = (int) (BUFFER_FACTOR * compression);
+        bufferMeans = new double[capacity];
+        bufferWeights = new long[capacity];
+    }
+
+    public void add(double x) {
+        add(x, 1);
+    }
+
+    private void add(double mean, long weight) {
+        if (Double.isNaN(mean)) {
+            throw new IllegalArgumentException("NaN has no place in an order");
+        }
+        if (buffered == bufferMeans.length) {
+            compress();
+        }
+        bufferMeans[buffered] = mean;
+        bufferWeights[buffered] = weight;
+        buffered++;
+        total += weight;
+        min = Math.min(min, mean);
+        max = Math.max(max, mean);
+    }
+
+    // folds other's samples into this one; the result is about as accurate as one sketch of both streams
+    public void merge(QuantileSketch other) {
+        other.compress();
+        for (Centroid c : other.centroids) {
+            add(c.mean, c.weight);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public static QuantileSketch mergeAll(Collection<QuantileSketch> sketches, double compression) {
+        QuantileSketch merged = new QuantileSketch(compression);
+        for (QuantileSketch sketch : sketches) {
+            merged.merge(sketch);
+        }
+        return merged;
+    }
+
+    // the t-digest k1 scale: centroids may span one unit of k, which is narrow near q = 0 and q = 1
+    private double k(double q) {
+        return compression / (2 * Math.PI) * Math.asin(2 * q - 1);
+    }
+
+    private double kInverse(double k) {
+        return (Math.sin(Math.min(k, compression / 4) * 2 * Math.PI / compression) + 1) / 2;
+    }
+
+    /* merges the buffer into the centroids in one sorted pass, growing each
+     * centroid while it stays inside one unit of the scale. The new centroids
+     * come out in order, so rebuilding the index is all appends. */
+    private void compress() {
+        if (buffered == 0) {
+            return;
+        }
+        int n = centroids.size() + buffered;
+        double[] means = new double[n];
+        long[] weights = new long[n];
+        Integer[] order = new Integer[buffered];
+        for (int i = 0; i < buffered; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(bufferMeans[a], bufferMeans[b]));
+
+        // merge the sorted buffer with the centroids, which are sorted already
+        Iterator<Centroid> it = centroids.iterator();
+        Centroid next = it.hasNext() ? it.next() : null;
+        int b = 0;
+        for (int i = 0; i < n; i++) {
+            if (next != null && (b == buffered || next.mean <= bufferMeans[order[b]])) {
+                means[i] = next.mean;
+                weights[i] = next.weight;
+                next = it.hasNext() ? it.next() : null;
+            } else {
+                means[i] = bufferMeans[order[b]];
+                weights[i] = bufferWeights[order[b]];
+                b++;
+            }
+        }
+        buffered = 0;
+
+        SkipList<Centroid> rebuilt = new SkipList<Centroid>(WEIGHT);
+        double mean = means[0];
+        long weight = weights[0];
+        long before = 0; // weight of the centroids already written
+        double limit = kInverse(k(0) + 1) * total;
+        for (int i = 1; i < n; i++) {
+            if (before + weight + weights[i] <= limit) {
+                weight += weights[i];
+                mean += (means[i] - mean) * weights[i] / weight;
+            } else {
+                rebuilt.add(new Centroid(mean, weight, seq++));
+                before += weight;
+                limit = kInverse(k((double) before / total) + 1) * total;
+                mean = means[i];
+                weight = weights[i];
+            }
+        }
+        rebuilt.add(new Centroid(mean, weight, seq++));
+        centroids = rebuilt;
+    }
+
+    public long size() {
+        return total;
+    }
+
+    // how many centroids the summary holds right now
+    public int centroidCount() {
+        compress();
+        return centroids.size();
+    }
+
+    /* the estimated value at quantile, interpolating between centroid centres
+     * (and the exact min and max at the ends) */
+    public double getQuantile(double quantile) {
+        if (quantile >= 1 || quantile < 0) {
+            throw new IndexOutOfBoundsException("Quantile is out of range");
+        }
+        if (total == 0) {
+            throw new NoSuchElementException("the sketch is empty");
+        }
+        compress();
+        double target = quantile * total;
+
+        double prevCenter = 0;  // min sits at weight 0
+        double prevMean = min;
+        double before = 0;
+        for (Centroid c : centroids) {
+            double center = before + c.weight / 2.0;
+            if (target < center) {
+                if (c.weight == 1 && target >= before) {
+                    return c.mean; // a single sample is exact
+                }
+                double t = (target - prevCenter) / (center - prevCenter);
+                return prevMean + t * (c.mean - prevMean);
+            }
+            prevCenter = center;
+            prevMean = c.mean;
+            before += c.weight;
+        }
+        double t = (target - prevCenter) / Math.max(1e-9, total - prevCenter);
+        return prevMean + t * (max - prevMean);
+    }
+
+    /* the estimated number of samples below x. The weight of every centroid
+     * up to x comes from the index's summaries in O(log n); only the two
+     * centroids around x are interpolated. */
+    public long rank(double x) {
+        if (total == 0 || x <= min) {
+            return 0;
+        }
+        if (x > max) {
+            return total;
+        }
+        compress();
+        Centroid probe = new Centroid(x, 0, Long.MIN_VALUE); // sorts before every centroid at x
+        Centroid lowest = new Centroid(Double.NEGATIVE_INFINITY, 0, Long.MIN_VALUE);
+        long below = centroids.aggregate(lowest, probe); // centroids with mean < x
+
+        int index = centroids.equalRange(probe).first; // first centroid at or past x
+        double leftMean = min;
+        double leftCenter = 0;
+        if (index > 0) {
+            Centroid left = centroids.get(index - 1);
+            leftMean = left.mean;
+            leftCenter = below - left.weight / 2.0;
+        }
+        double rightMean = max;
+        double rightCenter = total;
+        if (index < centroids.size()) {
+            Centroid right = centroids.get(index);
+            rightMean = right.mean;
+            rightCenter = below + right.weight / 2.0;
+        }
+        double t = (rightMean == leftMean) ? 0 : (x - leftMean) / (rightMean - leftMean);
+        return Math.round(leftCenter + t * (rightCenter - leftCenter));
+    }
+
+    // Tests
+
+    private static double rankError(QuantileSketch sketch, double[] sorted, double q) {
+        double estimate = sketch.getQuantile(q);
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) { // the exact rank of the estimate
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < estimate) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return Math.abs((double) lo / sorted.length - q);
+    }
+
+    public static boolean testAccuracyAndSize() {
+        QuantileSketch sketch = new QuantileSketch(100);
+        Random rand = new Random(43);
+        int n = 1000000;
+        double[] values = new double[n];
+        int centroidsMidway = 0;
+        for (int i = 0; i < n; i++) {
+            values[i] = Math.exp(rand.nextGaussian()); // skewed, like latencies
+            sketch.add(values[i]);
+            if (i == n / 10) {
+                centroidsMidway = sketch.centroidCount();
+            }
+        }
+        Arrays.sort(values);
+        for (double q : new double[] {0.01, 0.1, 0.5, 0.9}) {
+            if (rankError(sketch, values, q) > 0.01)
+                return false;
+        }
+        if (rankError(sketch, values, 0.99) > 0.002 || rankError(sketch, values, 0.999) > 0.0005)
+            return false;
+        long rank = sketch.rank(values[n / 2]);
+        // memory does not grow with the stream
+        return Math.abs(rank - n / 2) < n / 100
+            && sketch.centroidCount() <= 100
+            && centroidsMidway <= 100
+            && sketch.size() == n
+            && sketch.getQuantile(0) == values[0];
+    }
+
+    public static boolean testMerge() {
+        Random rand = new Random(47);
+        List<QuantileSketch> parts = new ArrayList<QuantileSketch>();
+        double[] values = new double[200000];
+        for (int i = 0; i < values.length; i++) {
+            if (i % 10000 == 0) {
+                parts.add(new QuantileSketch(100));
+            }
+            values[i] = rand.nextDouble() * 1000 + (i % 10000 == 0 ? 0 : parts.size()); // each source a bit shifted
+            parts.get(parts.size() - 1).add(values[i]);
+        }
+        QuantileSketch merged = mergeAll(parts, 100);
+        Arrays.sort(values);
+        return merged.size() == values.length
+            && merged.centroidCount() <= 100
+            && rankError(merged, values, 0.5) < 0.01
+            && rankError(merged, values, 0.99) < 0.003;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("accuracy and size: " + Boolean.toString(testAccuracyAndSize()));
+        System.out.println("merge: " + Boolean.toString(testMerge()));
+    }
+}
@@ -0,0 +1,47 @@
+/** Applies ChangeFeed batches to a replica list, in sequence order */
+import java.util.List;
+
+public class ReplicaApplier<E> {
+    private final List<E> replica;
+    private volatile long applied; // sequence number of the last applied change
+
+    // replica must start empty; read it from other threads only if it is thread safe
+    public ReplicaApplier(List<E> replica) {
+        this.replica = replica;
+    }
+
+    /* applies the changes this replica does not have yet. Ones already applied
+     * are skipped, so a batch can safely arrive twice. A gap is only allowed
+     * in front of a clear, which wipes whatever the gap held. */
+    public void apply(ChangeFeed.ChangeBatch<E> batch) {
+        for (ChangeFeed.Change<E> change : batch.changes) {
+            if (change.seq <= applied) {
+                continue;
+            }
+            if (change.seq != applied + 1 && change.kind != ChangeFeed.Kind.CLEAR) {
+                throw new IllegalStateException("changes " + (applied + 1) + " to " + (change.seq - 1) + " are missing");
+            }
+            switch (change.kind) {
+                case ADD:
+                    replica.add(change.element);
+                    break;
+                case REMOVE:
+                    replica.remove(change.element);
+                    break;
+                case CLEAR:
+                    replica.clear();
+                    break;
+            }
+            applied = change.seq;
+        }
+    }
+
+    // where reading from the feed should continue
+    public long appliedSeq() {
+        return applied;
+    }
+
+    public List<E> replica() {
+        return replica;
+    }
+}
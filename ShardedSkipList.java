@@ -0,0 +1,507 @@
+/** Sorted list split into key-range shards, each its own ConcurrentSkipList */
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+public class ShardedSkipList<E> extends AbstractList<E> {
+    // shards smaller than this are never split, there is nothing to gain
+    private static final int MIN_SPLIT_SIZE = 64;
+
+    /* shard i holds the keys from bounds[i - 1] (included) up to bounds[i]
+     * (excluded); the first and last shards are open ended */
+    private final ArrayList<ConcurrentSkipList<E>> shards = new ArrayList<ConcurrentSkipList<E>>();
+    private final ArrayList<E> bounds = new ArrayList<E>();
+    private final ArrayList<LongAdder> traffic = new ArrayList<LongAdder>(); // operations routed to each shard
+
+    private final ReentrantReadWriteLock layout = new ReentrantReadWriteLock(); // guards shards/bounds
+    private final ForkJoinPool pool;
+    private final int targetShards; // how many shards rebalance aims for
+
+    public ShardedSkipList() {
+        this(ForkJoinPool.commonPool().getParallelism());
+    }
+
+    public ShardedSkipList(int targetShards) {
+        this(Collections.<E>emptyList(), ForkJoinPool.commonPool(), targetShards);
+    }
+
+    // starts with one shard per range between the given sorted split keys
+    public ShardedSkipList(List<? extends E> splitKeys, ForkJoinPool pool, int targetShards) {
+        if (targetShards < 1) {
+            throw new IllegalArgumentException("need at least one shard");
+        }
+        this.pool = pool;
+        this.targetShards = targetShards;
+        bounds.addAll(splitKeys);
+        for (int i = 0; i <= bounds.size(); i++) {
+            shards.add(new ConcurrentSkipList<E>());
+            traffic.add(new LongAdder());
+        }
+    }
+
+    public int shardCount() {
+        layout.readLock().lock();
+        try {
+            return shards.size();
+        } finally {
+            layout.readLock().unlock();
+        }
+    }
+
+    public int shardSize(int shard) {
+        layout.readLock().lock();
+        try {
+            return shards.get(shard).size();
+        } finally {
+            layout.readLock().unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> int compare(Object a, E b) {
+        return ((Comparable<E>) a).compareTo(b);
+    }
+
+    // index of the shard o belongs to: the number of bounds at or before o. Caller holds layout.
+    private int route(Object o) {
+        int lo = 0, hi = bounds.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(o, bounds.get(mid)) >= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Single element operations
+
+    public boolean add(E e) {
+        layout.readLock().lock();
+        try {
+            int shard = route(e);
+            traffic.get(shard).increment();
+            return shards.get(shard).add(e);
+        } finally {
+            layout.readLock().unlock();
+        }
+    }
+
+    public boolean contains(Object o) {
+        layout.readLock().lock();
+        try {
+            int shard = route(o);
+            traffic.get(shard).increment();
+            return shards.get(shard).contains(o);
+        } finally {
+            layout.readLock().unlock();
+        }
+    }
+
+    public boolean remove(Object o) {
+        layout.readLock().lock();
+        try {
+            int shard = route(o);
+            traffic.get(shard).increment();
+            return shards.get(shard).remove(o);
+        } finally {
+            layout.readLock().unlock();
+        }
+    }
+
+    // Positional operations, answered from the per-shard counts
+
+    public int size() {
+        layout.readLock().lock();
+        try {
+            int size = 0;
+            for (ConcurrentSkipList<E> shard : shards) {
+                size += shard.size();
+            }
+            return size;
+        } finally {
+            layout.readLock().unlock();
+        }
+    }
+
+    public E get(int index) {
+        layout.readLock().lock();
+        try {
+            if (index < 0) {
+                throw new IndexOutOfBoundsException("chosen index is out of bounds");
+            }
+            for (ConcurrentSkipList<E> shard : shards) {
+                int size = shard.size();
+                if (index < size) {
+                    return shard.get(index);
+                }
+                index -= size;
+            }
+            throw new IndexOutOfBoundsException("chosen index is out of bounds");
+        } finally {
+            layout.readLock().unlock();
+        }
+    }
+
+    public E getQuantile(double quantile) {
+        if (quantile >= 1 || quantile < 0) {
+            throw new IndexOutOfBoundsException("Quantile is out of range");
+        }
+        layout.readLock().lock(); // same layout for the size and the lookup
+        try {
+            /* the shards can still shrink between reading the size and the
+             * lookup, which leaves the index past the end; the quantile itself
+             * is still valid, so try again with the new size */
+            while (true) {
+                int size = size();
+                if (size == 0) {
+                    throw new IndexOutOfBoundsException("chosen index is out of bounds");
+                }
+                try {
+                    return get((int) (size * quantile));
+                } catch (IndexOutOfBoundsException e) {
+                    // lost a race with a remove
+                }
+            }
+        } finally {
+            layout.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        layout.writeLock().lock();
+        try {
+            for (ConcurrentSkipList<E> shard : shards) {
+                shard.clear();
+            }
+        } finally {
+            layout.writeLock().unlock();
+        }
+    }
+
+    public Iterator<E> iterator() {
+        // shards in key order, each one a consistent snapshot
+        final List<Iterator<E>> parts = new ArrayList<Iterator<E>>();
+        layout.readLock().lock();
+        try {
+            for (ConcurrentSkipList<E> shard : shards) {
+                parts.add(shard.iterator());
+            }
+        } finally {
+            layout.readLock().unlock();
+        }
+        return new Iterator<E>() {
+            private int part = 0;
+
+            public boolean hasNext() {
+                while (part < parts.size() && !parts.get(part).hasNext()) {
+                    part++;
+                }
+                return part < parts.size();
+            }
+
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return parts.get(part).next();
+            }
+        };
+    }
+
+    // Bulk operations, fanned out over the pool one task per shard
+
+    // one shard's slice of a bulk operation
+    private static final class ShardTask<E> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ConcurrentSkipList<E> shard;
+        private final List<Object> items;
+        private final boolean adding;
+        private boolean changed;
+
+        ShardTask(ConcurrentSkipList<E> shard, List<Object> items, boolean adding) {
+            this.shard = shard;
+            this.items = items;
+            this.adding = adding;
+        }
+
+        @SuppressWarnings("unchecked")
+        protected void compute() {
+            if (adding) {
+                // sorted so the shard's finger search only moves forward
+                items.sort((a, b) -> compare(a, b));
+                changed = shard.addAll((List<E>) (List<?>) items);
+            } else {
+                changed = shard.removeAll(items);
+            }
+        }
+    }
+
+    private boolean fanOut(Collection<?> c, boolean adding) {
+        layout.readLock().lock();
+        try {
+            ArrayList<List<Object>> groups = new ArrayList<List<Object>>(shards.size());
+            for (int i = 0; i < shards.size(); i++) {
+                groups.add(new ArrayList<Object>());
+            }
+            for (Object o : c) {
+                groups.get(route(o)).add(o);
+            }
+            final List<ShardTask<E>> tasks = new ArrayList<ShardTask<E>>();
+            for (int i = 0; i < shards.size(); i++) {
+                if (!groups.get(i).isEmpty()) {
+                    traffic.get(i).add(groups.get(i).size());
+                    tasks.add(new ShardTask<E>(shards.get(i), groups.get(i), adding));
+                }
+            }
+            pool.invoke(new RecursiveAction() {
+                protected void compute() {
+                    ForkJoinTask.invokeAll(tasks);
+                }
+            });
+            boolean changed = false;
+            for (ShardTask<E> task : tasks) {
+                changed |= task.changed;
+            }
+            return changed;
+        } finally {
+            layout.readLock().unlock();
+        }
+    }
+
+    public boolean addAll(Collection<? extends E> c) {
+        return fanOut(c, true);
+    }
+
+    public boolean removeAll(Collection<?> c) {
+        return fanOut(c, false);
+    }
+
+    // visits every element, shards in parallel, so there is no ordering between shards
+    public void parallelForEach(final Consumer<? super E> action) {
+        layout.readLock().lock();
+        try {
+            final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            for (final ConcurrentSkipList<E> shard : shards) {
+                tasks.add(new RecursiveAction() {
+                    protected void compute() {
+                        for (E e : shard) {
+                            action.accept(e);
+                        }
+                    }
+                });
+            }
+            pool.invoke(new RecursiveAction() {
+                protected void compute() {
+                    ForkJoinTask.invokeAll(tasks);
+                }
+            });
+        } finally {
+            layout.readLock().unlock();
+        }
+    }
+
+    // Rebalancing
+
+    /* splits shards holding more than twice their share of the elements
+     * (size / targetShards) or taking more than twice the average traffic,
+     * then merges neighbours that together hold less than half a share.
+     * Returns how many shards changed. */
+    public int rebalance() {
+        layout.writeLock().lock();
+        try {
+            int changes = 0;
+            long total = 0, totalTraffic = 0;
+            for (int i = 0; i < shards.size(); i++) {
+                total += shards.get(i).size();
+                totalTraffic += traffic.get(i).sum();
+            }
+            double share = (double) total / targetShards;
+            double averageTraffic = (double) totalTraffic / shards.size();
+
+            for (int i = 0; i < shards.size(); i++) {
+                ConcurrentSkipList<E> shard = shards.get(i);
+                boolean big = shard.size() > 2 * share;
+                boolean hot = shards.size() > 1 && traffic.get(i).sum() > 2 * averageTraffic;
+                if ((big || hot) && shard.size() >= MIN_SPLIT_SIZE && split(i)) {
+                    changes++;
+                    i++; // the new upper half needs no second look this round
+                }
+            }
+            for (int i = 0; i + 1 < shards.size(); i++) {
+                if (shards.get(i).size() + shards.get(i + 1).size() < share / 2) {
+                    merge(i);
+                    changes++;
+                    i--; // the merged shard may merge again with the next one
+                }
+            }
+            for (LongAdder counter : traffic) {
+                counter.reset();
+            }
+            return changes;
+        } finally {
+            layout.writeLock().unlock();
+        }
+    }
+
+    /* moves the upper half of shard i into a new shard after it, in bulk: one
+     * linear copy, one removeRange and one addAll that only ever appends, so a
+     * few lock round trips rather than one removal per element. Caller holds
+     * the write lock, so nothing moves in between. */
+    @SuppressWarnings("unchecked")
+    private boolean split(int i) {
+        ConcurrentSkipList<E> lower = shards.get(i);
+        E median = lower.get(lower.size() / 2);
+        if (compare(median, lower.get(0)) == 0) {
+            return false; // one long run of equal keys, no bound can separate it
+        }
+        int from = lower.equalRange(median).first; // the median's whole run goes up
+        Object[] values = lower.toArray();
+        lower.removeRange(from, values.length);
+        ConcurrentSkipList<E> upper = new ConcurrentSkipList<E>();
+        upper.addAll((List<E>) (List<?>) Arrays.asList(values).subList(from, values.length));
+
+        shards.add(i + 1, upper);
+        bounds.add(i, median);
+        traffic.add(i + 1, new LongAdder());
+        return true;
+    }
+
+    // moves shard i + 1 into shard i. Caller holds the write lock.
+    private void merge(int i) {
+        ConcurrentSkipList<E> upper = shards.remove(i + 1);
+        ArrayList<E> moved = new ArrayList<E>(upper.size());
+        for (E e : upper) {
+            moved.add(e);
+        }
+        shards.get(i).addAll(moved);
+        bounds.remove(i);
+        traffic.remove(i + 1);
+    }
+
+    // Tests
+
+    public static boolean testRoutesByRange() {
+        ShardedSkipList<Integer> list = new ShardedSkipList<Integer>(Arrays.asList(100, 200), ForkJoinPool.commonPool(), 3);
+        List<Integer> plain = new ArrayList<Integer>();
+        Random rand = new Random(9);
+        for (int i = 0; i < 600; i++) {
+            int value = rand.nextInt(300);
+            list.add(value);
+            plain.add(value);
+        }
+        list.remove(plain.get(0)); // an Integer, so remove(Object)
+        plain.remove(0);
+        Collections.sort(plain);
+
+        return list.shardCount() == 3
+            && list.shardSize(0) > 0 && list.shardSize(1) > 0 && list.shardSize(2) > 0
+            && list.equals(plain)
+            && list.get(plain.size() - 1).equals(plain.get(plain.size() - 1))
+            && list.getQuantile(0.5).equals(plain.get(plain.size() / 2))
+            && list.contains(plain.get(10))
+            && !list.contains(-5);
+    }
+
+    public static boolean testBulkAndRebalance() {
+        ShardedSkipList<Integer> list = new ShardedSkipList<Integer>(8);
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 0; i < 5000; i++) {
+            values.add((i * 7919) % 5000);
+        }
+        list.addAll(values);
+
+        // one shard holding everything is too big, so it keeps splitting
+        while (list.rebalance() > 0) {
+        }
+        if (list.shardCount() < 4 || list.size() != 5000) {
+            return false;
+        }
+
+        List<Integer> evens = new ArrayList<Integer>();
+        for (int i = 0; i < 5000; i += 2) {
+            evens.add(i);
+        }
+        list.removeAll(evens);
+        final LongAdder sum = new LongAdder();
+        list.parallelForEach(e -> sum.add(e));
+
+        int expected = 1;
+        for (int value : list) {
+            if (value != expected) {
+                return false;
+            }
+            expected += 2;
+        }
+        if (list.size() != 2500 || sum.sum() != 2500L * 2500L) {
+            return false;
+        }
+
+        // runs of equal keys move up whole, so every copy stays findable through its bound
+        ShardedSkipList<Integer> copies = new ShardedSkipList<Integer>(8);
+        List<Integer> plain = new ArrayList<Integer>();
+        for (int i = 0; i < 6000; i++) {
+            plain.add((i * 7919) % 1000);
+        }
+        copies.addAll(plain);
+        while (copies.rebalance() > 0) {
+        }
+        Collections.sort(plain);
+        if (copies.shardCount() < 4 || !new ArrayList<Integer>(copies).equals(plain)) {
+            return false;
+        }
+        for (int k = 0; k < 1000; k += 37) {
+            for (int copy = 0; copy < 6; copy++) {
+                if (!copies.remove((Integer) k)) {
+                    return false;
+                }
+            }
+            if (copies.contains(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean testQuantileWhileRemoving() throws InterruptedException {
+        final ShardedSkipList<Integer> list = new ShardedSkipList<Integer>(Arrays.asList(1000, 2000), ForkJoinPool.commonPool(), 3);
+        for (int i = 0; i < 3000; i++) {
+            list.add(i);
+        }
+        // the top quantiles sit in the last shard, which this thread keeps emptying and refilling
+        Thread remover = new Thread(() -> {
+            for (int round = 0; round < 200; round++) {
+                for (int i = 2000; i < 3000; i++) {
+                    list.remove((Object) i);
+                }
+                for (int i = 2000; i < 3000; i++) {
+                    list.add(i);
+                }
+            }
+        });
+        remover.start();
+        boolean ok = true;
+        try {
+            while (remover.isAlive()) {
+                ok &= list.getQuantile(0.999) != null;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            ok = false;
+        }
+        remover.join();
+        return ok;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("routes by range: " + Boolean.toString(testRoutesByRange()));
+        System.out.println("bulk and rebalance: " + Boolean.toString(testBulkAndRebalance()));
+        System.out.println("quantile while removing: " + Boolean.toString(testQuantileWhileRemoving()));
+    }
+}
@@ -3,13 +3,56 @@
 import java.util.*;
 import java.lang.reflect.*;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 public class SkipList<E> implements List<E>
 {
     private static final int MAX_LEVELS = 30;
+    private static final int BUILD_CHUNK = 1 << 14; // nodes linked by one task in parallelBuild
+    private static final int MIN_FILTER_CAPACITY = 1024;
 
     private int count;    // list size
     private ArrayList<Node<E>> heads;
+    private ArrayList<Node<E>> tails; // last node on each level, null for an empty level
+    private int[] levelCounts;        // how many nodes reach each level
+    private int[] headSpans;          // elements the head's link jumps on each level, see spanOf
+
+    private int hash;            // List.hashCode() of the contents
+    private boolean hashValid;   // false once the contents change, unless hashTracked
+    private boolean hashTracked; // links keep hash summaries, from the first hashCode() on
+
+    // search finger: the path left behind by the last add/remove, so the next
+    // search for a nearby key can start there instead of at the top of heads
+    private ArrayList<Node<E>> fingerPath;
+    private int[] fingerRanks;   // index of each fingerPath node, -1 for the head
+    private E fingerValue;       // the key fingerPath was built for
+    private boolean fingerValid; // false when fingerPath may point at removed nodes
+
+    // optional range aggregates: every link keeps the summary of the elements it jumps over
+    private Monoid<Object, Object> monoid;
+
+    // optional membership filter in front of contains, and how lookups went through it
+    private CountingBloomFilter filter;
+    private double filterFpp;
+    private LongAdder filterRejects;        // settled by the filter alone
+    private LongAdder filterPasses;         // had to search
+    private LongAdder filterFalsePositives; // searched and found nothing
+
+    private ChangeListener<? super E> listener; // told about every change, may be null
+
+    // optional cached key prefixes: searches compare those first and call compareTo only on ties
+    private KeyNormalizer<? super E> normalizer;
+
+    private LevelGenerator levelGenerator = LevelGenerator.DEFAULT; // heights of added nodes
+
+    // incremental compaction: nodes before compactCursor already have their ideal height
+    private Node<E> compactCursor;       // next node to reshape, null when no pass is running
+    private int compactIndex;            // index of compactCursor
+    private ArrayList<Node<E>> compactLast; // last reshaped node on each level, null for the head
+    private int[] compactLastRanks;         // index of each compactLast node, -1 for the head
+    private CompactionReport compactStart;  // the shape when the running pass began
+    private CompactionReport lastCompaction;
 
     /* the list constructor - starts with an empty list */
     public SkipList() {
@@ -19,6 +62,26 @@ public class SkipList<E> implements List<E>
         for (int i = 0; i < MAX_LEVELS; i++) {
             heads.add(i,null);
         }
+        tails = new ArrayList<Node<E>>(MAX_LEVELS);
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            tails.add(i,null);
+        }
+        levelCounts = new int[MAX_LEVELS];
+        headSpans = new int[MAX_LEVELS];
+        fingerRanks = new int[MAX_LEVELS];
+        fingerPath = new ArrayList<Node<E>>(MAX_LEVELS);
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            fingerPath.add(i,null);
+        }
+        fingerValid = false;
+    }
+
+    /* a list whose links also carry monoid summaries, so aggregate(from, to)
+     * can be answered from the upper levels */
+    @SuppressWarnings("unchecked")
+    public SkipList(Monoid<? super E, ?> monoid) {
+        this();
+        this.monoid = (Monoid<Object, Object>) monoid;
     }
 
     // Group 1
@@ -28,52 +91,270 @@ public class SkipList<E> implements List<E>
         @SuppressWarnings("unchecked")
         Comparable<E> ce = (Comparable<E>)e;
 
-        Node<E> newNode = new Node<E>(e);
-        int newNodeLevels = newNode.levels();
+        if (filter != null) {
+            if (count >= filter.capacity()) {
+                rebuildFilter(2 * filter.capacity()); // past its size the false positive rate climbs
+            }
+            filter.add(e);
+        }
 
-        // filling addPath with all the nodes to potentially be updated
-        ArrayList<Node<E>> addPath = new ArrayList<Node<E>>(MAX_LEVELS);
-        for (int i = 0; i < MAX_LEVELS; i++) {
-            addPath.add(i,null);
+        Node<E> newNode = new Node<E>(e, levelGenerator.nextLevel());
+        int newNodeLevels = newNode.levels();
+        if (normalizer != null) {
+            newNode.setPrefix(normalizer.prefix(e));
         }
 
-        Node<E> finger = null; // which means starting at the head
-        for (int lvl = MAX_LEVELS - 1; lvl >= 0; lvl--) {
-            if (finger == null) { // when finger is at the head
-                if (heads.get(lvl) == null || ce.compareTo(heads.get(lvl).value()) < 0) {
-                    addPath.set(lvl, null); // we'll have to update the head
-                } else { // traveling on the level
-                    finger = heads.get(lvl);
-                    while ( (finger.next(lvl) != null)
-                        && ce.compareTo(finger.next(lvl).value()) > 0 ) {
-                        finger = finger.next(lvl);
-                    }
-                    addPath.set(lvl, finger);
-                }
-            } else { // finger is at a node
-                while ( (finger.next(lvl) != null)
-                    && ce.compareTo(finger.next(lvl).value()) > 0 ) {
-                    finger = finger.next(lvl);
-                }
-                addPath.set(lvl,finger);
-            }
+        // time series mostly arrive in order, and then the tails are the whole path
+        if (tails.get(0) == null || compare(ce, newNode.prefix(), tails.get(0)) >= 0) {
+            append(newNode);
+            return true;
         }
 
+        // filling fingerPath with all the nodes to potentially be updated
+        findPredecessor(ce, true);
+        int rank = fingerRanks[0] + 1; // index the new node ends up at
+
         // insert the new node in the skiplist
         for (int lvl = 0; lvl < newNodeLevels; lvl++) {
-            if (addPath.get(lvl) == null) { // flag for the heads pointers
+            // the old link is split in two, and everything after it moved up by one
+            int predRank = fingerRanks[lvl];
+            newNode.setSpan(lvl, spanOf(fingerPath.get(lvl), lvl) + predRank + 1 - rank);
+            setSpan(fingerPath.get(lvl), lvl, rank - predRank);
+            if (fingerPath.get(lvl) == null) { // flag for the heads pointers
                 newNode.setNext(lvl,heads.get(lvl));
                 heads.set(lvl,newNode);
             } else { // affects a node
-                newNode.setNext(lvl,addPath.get(lvl).next(lvl));
-                addPath.get(lvl).setNext(lvl, newNode);
+                newNode.setNext(lvl,fingerPath.get(lvl).next(lvl));
+                fingerPath.get(lvl).setNext(lvl, newNode);
+            }
+            if (newNode.next(lvl) == null) { // new last node on this level
+                tails.set(lvl, newNode);
             }
+            levelCounts[lvl]++;
         }
+        // links above the new node now jump one more element
+        for (int lvl = newNodeLevels; lvl < MAX_LEVELS; lvl++) {
+            Node<E> pred = fingerPath.get(lvl);
+            if (pred == null && heads.get(lvl) == null) {
+                break; // empty from here up
+            }
+            setSpan(pred, lvl, spanOf(pred, lvl) + 1);
+        }
+        // the nodes before e are still before e, so the path stays good for the next search
+        fingerValue = e;
+        fingerValid = true;
 
+        if (summarized()) {
+            refreshAfterInsert(newNode, fingerPath);
+        }
         count++;
+        structureChanged();
+        compactionInserted(newNode, rank);
+        if (listener != null) {
+            listener.added(e);
+        }
         return true;
     }
 
+    /* links a node holding the new largest element in O(height) without a
+     * search. The finger survives only if its key is no greater than the new
+     * element: its key can be past the end (a remove of the largest element,
+     * or of one that was never there), and then the new node belongs on its
+     * path. */
+    @SuppressWarnings("unchecked")
+    private void append(Node<E> newNode) {
+        if (fingerValid && ((Comparable<E>) newNode.value()).compareTo(fingerValue) < 0) {
+            fingerValid = false;
+        }
+        for (int lvl = 0; lvl < newNode.levels(); lvl++) {
+            // the last link keeps its span, it just ends at the new node instead of past the end
+            if (tails.get(lvl) == null) {
+                heads.set(lvl, newNode);
+                headSpans[lvl] = count + 1;
+            } else {
+                tails.get(lvl).setNext(lvl, newNode);
+            }
+            newNode.setSpan(lvl, 1);
+            tails.set(lvl, newNode);
+            levelCounts[lvl]++;
+        }
+        // links above the new node now reach one element further
+        for (int lvl = newNode.levels(); lvl < MAX_LEVELS && tails.get(lvl) != null; lvl++) {
+            tails.get(lvl).setSpan(lvl, tails.get(lvl).span(lvl) + 1);
+        }
+
+        if (summarized()) {
+            // the links into the new node cover what they did before, the ones above gain it
+            for (int lvl = 0; lvl < MAX_LEVELS && tails.get(lvl) != null; lvl++) {
+                refreshLink(tails.get(lvl), lvl);
+            }
+        }
+        count++;
+        structureChanged();
+        if (listener != null) {
+            listener.added(newNode.value());
+        }
+    }
+
+    // called after every change to the contents, once the summaries are refreshed
+    private void structureChanged() {
+        if (hashTracked) {
+            hash = hashFromSummaries();
+        } else {
+            hashValid = false;
+        }
+    }
+
+    /* how many level 0 steps the link from pred (null for the head) on lvl
+     * jumps, the end of the list sitting at index count. Summing spans along a
+     * search gives the index of where it stops, which is what makes get and
+     * the equal range O(log n). Empty levels of the head are not stored. */
+    private int spanOf(Node<E> pred, int lvl) {
+        if (pred != null) {
+            return pred.span(lvl);
+        }
+        return (heads.get(lvl) == null) ? count + 1 : headSpans[lvl];
+    }
+
+    private void setSpan(Node<E> pred, int lvl, int span) {
+        if (pred == null) {
+            headSpans[lvl] = span;
+        } else {
+            pred.setSpan(lvl, span);
+        }
+    }
+
+    /* finds the last node before ce at every level (null meaning the head) and
+     * returns the one on level 0. With moveFinger the path and the index of each
+     * of its nodes become the new finger, otherwise the finger is only read.
+     *
+     * When the finger is valid the search climbs from the old path only as high
+     * as it has to, so a key d positions away costs O(log d) instead of a full
+     * descent from the top level. */
+    private Node<E> findPredecessor(Comparable<E> ce, boolean moveFinger) {
+        int top = MAX_LEVELS - 1;
+        Node<E> finger = null; // which means starting at the head
+        long prefix = prefixOf(ce);
+
+        if (fingerValid) {
+            top = 0;
+            if (ce.compareTo(fingerValue) > 0) {
+                // moving right: climb while this level's next node is still before ce
+                while (top < MAX_LEVELS - 1) {
+                    Node<E> next = (fingerPath.get(top) == null) ? heads.get(top) : fingerPath.get(top).next(top);
+                    if (next == null || compare(ce, prefix, next) <= 0) {
+                        break;
+                    }
+                    top++;
+                }
+                finger = fingerPath.get(top);
+            } else {
+                // moving left: climb until the saved node is before ce again
+                while (top < MAX_LEVELS - 1 && fingerPath.get(top) != null
+                    && compare(ce, prefix, fingerPath.get(top)) <= 0) {
+                    top++;
+                }
+                finger = fingerPath.get(top);
+                if (finger != null && compare(ce, prefix, finger) <= 0) {
+                    finger = null; // even the top of the old path is too far right
+                }
+            }
+        }
+
+        // levels above top are unchanged: their nodes are before ce and their next ones after it
+        int rank = (finger == null) ? -1 : fingerRanks[top];
+        for (int lvl = top; lvl >= 0; lvl--) {
+            Node<E> next = (finger == null) ? heads.get(lvl) : finger.next(lvl);
+            while (next != null && compare(ce, prefix, next) > 0) {
+                if (moveFinger) {
+                    rank += spanOf(finger, lvl);
+                }
+                finger = next;
+                next = finger.next(lvl);
+            }
+            if (moveFinger) {
+                fingerPath.set(lvl, finger);
+                fingerRanks[lvl] = rank;
+            }
+        }
+        return finger;
+    }
+
+    // the normalized prefix of a search key, 0 when there is no normalizer
+    @SuppressWarnings("unchecked")
+    private long prefixOf(Comparable<E> ce) {
+        return (normalizer == null) ? 0 : normalizer.prefix((E) ce);
+    }
+
+    /* ce against node's element, with prefix being ce's own. Different
+     * prefixes decide without touching the element; only a tie, or a list
+     * without a normalizer, gets as far as compareTo. */
+    private int compare(Comparable<E> ce, long prefix, Node<E> node) {
+        if (normalizer != null) {
+            int c = Long.compareUnsigned(prefix, node.prefix());
+            if (c != 0) {
+                return c;
+            }
+        }
+        return ce.compareTo(node.value());
+    }
+
+    /* where the heights of nodes added from now on come from, such as a
+     * seeded generator for a reproducible benchmark or a smaller p for fewer
+     * links. The list has room for MAX_LEVELS levels at most. */
+    public void setLevelGenerator(LevelGenerator levelGenerator) {
+        if (levelGenerator.maxLevel() > MAX_LEVELS) {
+            throw new IllegalArgumentException("at most " + MAX_LEVELS + " levels");
+        }
+        this.levelGenerator = levelGenerator;
+    }
+
+    public static boolean testLevelGenerator() {
+        // the share of heights reaching each level follows p, for both ways of drawing
+        double[] ps = {0.5, 0.25, 0.3};
+        for (double p : ps) {
+            LevelGenerator generator = LevelGenerator.geometric(p, 12);
+            int n = 400000;
+            int[] reached = new int[13];
+            for (int i = 0; i < n; i++) {
+                int height = generator.nextLevel();
+                if (height < 1 || height > 12)
+                    return false;
+                for (int lvl = 1; lvl <= height; lvl++) {
+                    reached[lvl]++;
+                }
+            }
+            for (int lvl = 2; lvl <= 4; lvl++) {
+                double expected = Math.pow(p, lvl - 1);
+                if (Math.abs((double) reached[lvl] / n - expected) > 0.05 * expected)
+                    return false;
+            }
+        }
+
+        // the same seed builds the same shape
+        List<Integer> input = new ArrayList<Integer>();
+        Random rand = new Random(61);
+        for (int i = 0; i < 5000; i++) {
+            input.add(rand.nextInt(100000));
+        }
+        SkipList<Integer> a = new SkipList<Integer>();
+        SkipList<Integer> b = new SkipList<Integer>();
+        a.setLevelGenerator(LevelGenerator.seeded(0.25, 16, 7));
+        b.setLevelGenerator(LevelGenerator.seeded(0.25, 16, 7));
+        a.addAll(input);
+        b.addAll(input);
+        Collections.sort(input);
+        try {
+            a.setLevelGenerator(LevelGenerator.geometric(0.5, MAX_LEVELS + 1));
+            return false;
+        } catch (IllegalArgumentException expected) {
+        }
+        return a.equals(input)
+            && Arrays.equals(a.levelCounts, b.levelCounts)
+            && a.levelCounts[16] == 0
+            && a.levelCounts[1] < input.size() / 3;
+    }
+
     public boolean testAdd(boolean verbose)  {
         //creates a new SkipList called testList
         List<Integer> testList = new SkipList<Integer>();
@@ -95,8 +376,62 @@ public class SkipList<E> implements List<E>
         //return compareList.equals(testList);
     }
 
-    public boolean addAll(Collection<? extends E> c) {
+    public static boolean testAppend() {
+        SkipList<Integer> list = new SkipList<Integer>(Monoid.<Integer>sum());
+        List<Integer> plain = new ArrayList<Integer>();
+        // in order with repeats, the odd value landing in the middle
+        for (int i = 0; i < 5000; i++) {
+            int value = (i % 97 == 0) ? i / 2 : i - i % 3;
+            list.add(value);
+            plain.add(value);
+        }
+        Collections.sort(plain);
+        long total = 0;
+        for (int value : plain) {
+            total += value;
+        }
+        double sum = list.aggregate(0, 5000);
+        if (!(list.equals(plain)
+            && list.get(4000).equals(plain.get(4000))
+            && list.countOf(3000) == Collections.frequency(plain, 3000)
+            && list.peekLast() == 4998
+            && sum == total))
+            return false;
+
+        // a remove can leave the finger past the end; appends must not keep using it
+        SkipList<Integer> small = new SkipList<Integer>();
+        small.setLevelGenerator(new LevelGenerator() { // every node on the levels the finger skips
+            public int nextLevel() {
+                return 3;
+            }
+
+            public int maxLevel() {
+                return 3;
+            }
+        });
+        small.add(1);
+        small.add(100);
+        small.remove((Integer) 100); // the largest
+        small.add(50);
+        small.add(90);
+        small.add(70); // mid-list, so it searches from the finger
+        small.remove((Integer) 200); // never there
+        small.add(95);
+        small.add(80);
+        small.removeAllOccurrences(1000);
+        small.add(99);
+        small.add(60);
+        List<Integer> expected = Arrays.asList(1, 50, 60, 70, 80, 90, 95, 99);
+        for (int i = 0; i < expected.size(); i++) {
+            if (!small.get(i).equals(expected.get(i)) || small.indexOf(expected.get(i)) != i)
+                return false;
+        }
+        return small.equals(expected);
+    }
 
+    public boolean addAll(Collection<? extends E> c) {
+        // an ordered batch past the end takes the append path element by element,
+        // and one that lands in the middle walks along with the finger
         boolean isDifferent = false;
         for (E e:c)
             if (add(e)) {
@@ -131,32 +466,9 @@ public class SkipList<E> implements List<E>
     }
 
     public int indexOf(Object obj) {
-
-        if (isEmpty()) {
-            return -1;
-        }
-
-        int index = 0;
-        Node<E> temp = heads.get(0);
-        boolean flag = false;
-
-        while (temp != null) {
-            if (temp.value().equals(obj)) {
-                flag = true;
-                break;
-            }
-            temp = temp.next(0);
-            index++;
-        }
-        if (flag){
-            return index;
-        }
-        else{
-            return -1;
-        }
+        return findInRange(obj, false);
     }
 
-
     public static boolean testindexOf(){
         List<Integer> testList = new SkipList<Integer>();
         int testValue2 = 10;
@@ -172,22 +484,59 @@ public class SkipList<E> implements List<E>
             return false;
         }
     }
+
+    public static boolean testIndexOfForeignObjects() {
+        SkipList<Integer> list = new SkipList<Integer>();
+        list.add(3);
+        list.add(8);
+        List<Object> asObjects = new ArrayList<Object>(list);
+        // like any other List: never equal, so not found
+        return list.indexOf(null) == -1 && list.lastIndexOf(null) == -1
+            && list.indexOf("x") == -1 && list.lastIndexOf("x") == -1
+            && list.indexOf(new Object()) == -1
+            && list.indexOf(3L) == asObjects.indexOf(3L)
+            && list.indexOf(8) == 1;
+    }
+
     public int lastIndexOf(Object m) {
+        return findInRange(m, true);
+    }
 
-        int index = indexOf(m);
-        if (index == -1) {
+    /* index of the first (or last) element equal to o. Only o's equal range can
+     * hold it, and when compareTo agrees with equals the end of the range is
+     * the answer, so this is O(log n); otherwise the range is scanned. Null
+     * and objects that do not compare with the elements equal none of them,
+     * so those are -1 as with any List. */
+    @SuppressWarnings("unchecked")
+    private int findInRange(Object o, boolean last) {
+        if (o == null) {
             return -1;
         }
-        else {
-            Node<E> temp = heads.get(0);
-            for (int i = 0; i < index; i++) {
-                temp = temp.next(0);
+        EqualRange range;
+        try {
+            range = equalRange((E) o);
+        } catch (ClassCastException e) {
+            return -1;
+        }
+        if (range.count == 0) {
+            return -1;
+        }
+        int guess = last ? range.last : range.first;
+        if (nodeAt(guess).value().equals(o)) {
+            return guess;
+        }
+        int found = -1;
+        Node<E> node = nodeAt(range.first);
+        for (int index = range.first; index <= range.last; index++) {
+            if (node.value().equals(o)) {
+                found = index;
+                if (!last) {
+                    break;
+                }
             }
-            while (temp.next(0).value() == m) {
-                temp = temp.next(0);
-                index++;
-            } return index;
+            node = node.next(0);
         }
+        return found;
     }
 
     public static boolean testlastIndexOf() {
@@ -209,42 +558,502 @@ public class SkipList<E> implements List<E>
         }
     }
 
+    // Equal ranges
+
+    /* where a key sits in the list: the indexes of its first and last copy and
+     * how many copies there are. With no copies, first is where the key would
+     * be inserted and last is first - 1. */
+    public static class EqualRange {
+        public final int first;
+        public final int last;
+        public final int count;
+
+        EqualRange(int first, int count) {
+            this.first = first;
+            this.last = first + count - 1;
+            this.count = count;
+        }
+
+        public String toString() {
+            return "[" + first + ", " + last + "] x" + count;
+        }
+    }
+
+    // number of elements before ce, or not after it when inclusive
+    private int rankOf(Comparable<E> ce, boolean inclusive) {
+        Node<E> finger = null; // which means starting at the head
+        int rank = -1;
+        long prefix = prefixOf(ce);
+        for (int lvl = MAX_LEVELS - 1; lvl >= 0; lvl--) {
+            Node<E> next = (finger == null) ? heads.get(lvl) : finger.next(lvl);
+            while (next != null && (inclusive ? compare(ce, prefix, next) >= 0 : compare(ce, prefix, next) > 0)) {
+                rank += spanOf(finger, lvl);
+                finger = next;
+                next = finger.next(lvl);
+            }
+        }
+        return rank + 1;
+    }
+
+    // two descents, one to each end of the run of copies, so O(log n) however many there are
+    public EqualRange equalRange(E e) {
+        @SuppressWarnings("unchecked")
+        Comparable<E> ce = (Comparable<E>) e;
+        int first = rankOf(ce, false);
+        return new EqualRange(first, rankOf(ce, true) - first);
+    }
+
+    // how many elements compare equal to e
+    public int countOf(E e) {
+        @SuppressWarnings("unchecked")
+        Comparable<E> ce = (Comparable<E>) e;
+        return rankOf(ce, true) - rankOf(ce, false);
+    }
+
+    /* removes every element comparing equal to e and returns how many went.
+     * The nodes before the run are its predecessors on every level, so one
+     * search finds them all and each copy is unlinked in O(height). */
+    public int removeAllOccurrences(E e) {
+        @SuppressWarnings("unchecked")
+        Comparable<E> ce = (Comparable<E>) e;
+        findPredecessor(ce, true);
+        // the nodes before e are never the ones removed, so the path stays good
+        fingerValue = e;
+        fingerValid = true;
+
+        int removed = 0;
+        long prefix = prefixOf(ce);
+        Node<E> node = (fingerPath.get(0) == null) ? heads.get(0) : fingerPath.get(0).next(0);
+        while (node != null && compare(ce, prefix, node) == 0) {
+            Node<E> following = node.next(0);
+            unlink(node, fingerPath, fingerRanks);
+            removed++;
+            node = following;
+        }
+        return removed;
+    }
+
+    public static boolean testEqualRange() {
+        SkipList<Integer> list = new SkipList<Integer>();
+        List<Integer> plain = new ArrayList<Integer>();
+        Random rand = new Random(17);
+        // quantized values, so every key has a long run of copies (and boxes past the Integer cache)
+        for (int i = 0; i < 3000; i++) {
+            int value = 1000 + 100 * rand.nextInt(20);
+            list.add(value);
+            plain.add(value);
+        }
+        Collections.sort(plain);
+
+        for (int key = 900; key <= 3100; key += 50) {
+            EqualRange range = list.equalRange(key);
+            int first = plain.indexOf(key);
+            int last = plain.lastIndexOf(key);
+            int count = Collections.frequency(plain, key);
+            if (range.count != count || list.countOf(key) != count)
+                return false;
+            if (count > 0 && (range.first != first || range.last != last
+                || list.indexOf(key) != first || list.lastIndexOf(key) != last))
+                return false;
+            if (count == 0 && (range.last != range.first - 1 || list.lastIndexOf(key) != -1))
+                return false;
+        }
+
+        int removed = list.removeAllOccurrences(1500);
+        int expected = Collections.frequency(plain, 1500);
+        plain.removeAll(Collections.singleton(1500));
+        return removed == expected
+            && list.countOf(1500) == 0
+            && list.removeAllOccurrences(1500) == 0
+            && list.equals(plain)
+            && list.get(plain.size() - 1).equals(plain.get(plain.size() - 1));
+    }
+
+    public static boolean testIndexStaysConsistent() {
+        // spans have to survive every way of changing the list
+        List<Integer> input = new ArrayList<Integer>();
+        Random rand = new Random(19);
+        for (int i = 0; i < BUILD_CHUNK + 500; i++) {
+            input.add(rand.nextInt(5000));
+        }
+        SkipList<Integer> list = SkipList.parallelBuild(input);
+        List<Integer> plain = new ArrayList<Integer>(input);
+        Collections.sort(plain);
+
+        for (int i = 0; i < 3000; i++) {
+            int value = rand.nextInt(5000);
+            switch (rand.nextInt(5)) {
+                case 0:
+                    list.add(value);
+                    int at = Collections.binarySearch(plain, value);
+                    plain.add(at < 0 ? -at - 1 : at, value);
+                    break;
+                case 1:
+                    list.remove((Integer) value);
+                    plain.remove((Integer) value);
+                    break;
+                case 2:
+                    int index = rand.nextInt(plain.size());
+                    if (!list.remove(index).equals(plain.remove(index)))
+                        return false;
+                    break;
+                case 3:
+                    if (!list.pollLast().equals(plain.remove(plain.size() - 1)))
+                        return false;
+                    break;
+                default:
+                    list.compactStep(200);
+            }
+        }
+        list.compact();
+        for (int i = 0; i < plain.size(); i += 7) {
+            if (!list.get(i).equals(plain.get(i)))
+                return false;
+        }
+        return list.size() == plain.size() && list.equals(plain);
+    }
+
+    public static <E> SkipList<E> parallelBuild(Collection<? extends E> c) {
+        return parallelBuild(c, LevelGenerator.DEFAULT);
+    }
+
+    /* builds a list from unsorted input on every core: a fork-join parallel
+     * sort, then each chunk of the sorted values gets its nodes created and
+     * linked on all levels by its own task, and finally the chunks are
+     * stitched together level by level in order. Heights come from
+     * levelGenerator, each chunk drawing from its own split of it, so a
+     * seeded generator builds the same shape every time; the list keeps the
+     * generator for later adds. */
+    @SuppressWarnings("unchecked")
+    public static <E> SkipList<E> parallelBuild(Collection<? extends E> c, LevelGenerator levelGenerator) {
+        SkipList<E> list = new SkipList<E>();
+        list.setLevelGenerator(levelGenerator);
+        final Object[] values = c.toArray();
+        Arrays.parallelSort(values, (a, b) -> ((Comparable<Object>) a).compareTo(b));
+
+        final int n = values.length;
+        final int chunks = (n + BUILD_CHUNK - 1) / BUILD_CHUNK;
+        final LevelGenerator[] generators = new LevelGenerator[chunks];
+        for (int chunk = 0; chunk < chunks; chunk++) { // in order, so the splits are the same every time
+            generators[chunk] = levelGenerator.split();
+        }
+        final Node<E>[][] firsts = newNodeArrays(chunks);
+        final Node<E>[][] lasts = newNodeArrays(chunks);
+        final int[][] firstRanks = new int[chunks][]; // indexes of the firsts and lasts
+        final int[][] lastRanks = new int[chunks][];
+        final int[][] chunkCounts = new int[chunks][]; // nodes reaching each level, per chunk
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            Node<E>[] first = newNodeArray(MAX_LEVELS);
+            Node<E>[] last = newNodeArray(MAX_LEVELS);
+            int[] firstRank = new int[MAX_LEVELS];
+            int[] lastRank = new int[MAX_LEVELS];
+            int[] counts = new int[MAX_LEVELS];
+            LevelGenerator generator = generators[chunk];
+            int end = Math.min(n, (chunk + 1) * BUILD_CHUNK);
+            for (int i = chunk * BUILD_CHUNK; i < end; i++) {
+                Node<E> node = new Node<E>((E) values[i], generator.nextLevel());
+                for (int lvl = 0; lvl < node.levels(); lvl++) {
+                    counts[lvl]++;
+                    if (last[lvl] == null) {
+                        first[lvl] = node;
+                        firstRank[lvl] = i;
+                    } else {
+                        last[lvl].setNext(lvl, node);
+                        last[lvl].setSpan(lvl, i - lastRank[lvl]);
+                    }
+                    last[lvl] = node;
+                    lastRank[lvl] = i;
+                }
+            }
+            firsts[chunk] = first;
+            lasts[chunk] = last;
+            firstRanks[chunk] = firstRank;
+            lastRanks[chunk] = lastRank;
+            chunkCounts[chunk] = counts;
+        });
+
+        int[] tailRanks = new int[MAX_LEVELS];
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            for (int lvl = 0; lvl < MAX_LEVELS; lvl++) {
+                list.levelCounts[lvl] += chunkCounts[chunk][lvl];
+                if (firsts[chunk][lvl] == null) {
+                    continue;
+                }
+                if (list.tails.get(lvl) == null) {
+                    list.heads.set(lvl, firsts[chunk][lvl]);
+                    list.headSpans[lvl] = firstRanks[chunk][lvl] + 1;
+                } else {
+                    list.tails.get(lvl).setNext(lvl, firsts[chunk][lvl]);
+                    list.tails.get(lvl).setSpan(lvl, firstRanks[chunk][lvl] - tailRanks[lvl]);
+                }
+                list.tails.set(lvl, lasts[chunk][lvl]);
+                tailRanks[lvl] = lastRanks[chunk][lvl];
+            }
+        }
+        for (int lvl = 0; lvl < MAX_LEVELS && list.tails.get(lvl) != null; lvl++) {
+            list.tails.get(lvl).setSpan(lvl, n - tailRanks[lvl]);
+        }
+        list.count = n;
+        return list;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <E> Node<E>[] newNodeArray(int length) {
+        return (Node<E>[]) new Node[length];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <E> Node<E>[][] newNodeArrays(int length) {
+        return (Node<E>[][]) new Node[length][];
+    }
+
+    public static boolean testParallelBuild() {
+        List<Integer> input = new ArrayList<Integer>();
+        Random rand = new Random(13);
+        for (int i = 0; i < 3 * BUILD_CHUNK + 123; i++) {
+            input.add(rand.nextInt(1000000));
+        }
+        SkipList<Integer> list = SkipList.parallelBuild(input);
+        Collections.sort(input);
+        if (!list.equals(input) || list.size() != input.size())
+            return false;
+
+        // the result is an ordinary list, so updates keep working on it
+        list.add(-1);
+        list.add(2000000);
+        list.remove(input.get(100));
+        if (!(list.peekFirst() == -1
+            && list.peekLast() == 2000000
+            && list.contains(input.get(5000))
+            && list.size() == input.size() + 1))
+            return false;
+
+        // heights come from the generator, so a seeded one builds the same shape twice
+        SkipList<Integer> a = SkipList.parallelBuild(input, LevelGenerator.seeded(0.25, 4, 3));
+        SkipList<Integer> b = SkipList.parallelBuild(input, LevelGenerator.seeded(0.25, 4, 3));
+        if (!(Arrays.equals(a.levelCounts, b.levelCounts)
+            && a.levelCounts[3] > 0 && a.levelCounts[4] == 0
+            && a.levelGenerator.maxLevel() == 4))
+            return false;
+
+        // the chunks' own counts add up to what each level really links
+        for (int lvl = 0; lvl < MAX_LEVELS; lvl++) {
+            int nodes = 0;
+            for (Node<Integer> node = a.heads.get(lvl); node != null; node = node.next(lvl)) {
+                nodes++;
+            }
+            if (nodes != a.levelCounts[lvl])
+                return false;
+        }
+        return true;
+    }
+
     // Group 2
 
     public boolean contains(Object o)
     {
         @SuppressWarnings("unchecked") // Supressing type checks
         Comparable<E> co = (Comparable<E>) o; // Casting Comparable to the Object, so compareTo magic can happen, 10 points to Gryffindor!
-        if (heads == null) return false; // return false if no heads pointers
-        int lvl = heads.size() - 1; // start level at max
-        while (heads.get(lvl) == null) // get level to where the highest node is
-        {
-            lvl--;
+
+        if (filter != null) {
+            if (!filter.mightContain(o)) {
+                filterRejects.increment();
+                return false;
+            }
+            filterPasses.increment();
         }
-        Node<E> temp = heads.get(lvl); // set temp to that node
-        while (lvl >= 0)
-        {
-            if (temp != null) // if it's not null, it's filled, so...
-            {
-                if (co.compareTo(temp.value()) == 0)  // o is equal to temp
-                    return true;
-                if (lvl == 0 && (temp.next(0) == null || co.compareTo(temp.value()) < 0))  // couldn't find o
-                    return false;
+
+        // read-only use of the finger, so concurrent readers never write to the list
+        Node<E> before = findPredecessor(co, false);
+        Node<E> candidate = (before == null) ? heads.get(0) : before.next(0);
+        boolean found = candidate != null && compare(co, prefixOf(co), candidate) == 0;
+        if (filter != null && !found) {
+            filterFalsePositives.increment();
+        }
+        return found;
+    }
+
+    /* puts a counting Bloom filter in front of contains, so lookups of absent
+     * keys mostly return without a descent. It is kept up to date by every add
+     * and remove, and rebuilt twice as big when the list outgrows it. Only for
+     * elements whose hashCode agrees with compareTo: two that compare equal
+     * must hash the same, or contains could miss one. */
+    public void enableFilter(double falsePositiveRate) {
+        filterFpp = falsePositiveRate;
+        if (filterRejects == null) {
+            filterRejects = new LongAdder();
+            filterPasses = new LongAdder();
+            filterFalsePositives = new LongAdder();
+        }
+        rebuildFilter(Math.max(MIN_FILTER_CAPACITY, 2 * count));
+    }
+
+    public void disableFilter() {
+        filter = null;
+    }
+
+    private void rebuildFilter(int capacity) {
+        filter = new CountingBloomFilter(capacity, filterFpp);
+        for (Node<E> node = heads.get(0); node != null; node = node.next(0)) {
+            filter.add(node.value());
+        }
+    }
+
+    // lookups the filter answered on its own
+    public long filterRejects() {
+        return (filterRejects == null) ? 0 : filterRejects.sum();
+    }
+
+    // lookups that got past the filter and searched
+    public long filterPasses() {
+        return (filterPasses == null) ? 0 : filterPasses.sum();
+    }
+
+    // searches the filter let through for keys that were not there
+    public long filterFalsePositives() {
+        return (filterFalsePositives == null) ? 0 : filterFalsePositives.sum();
+    }
+
+    public static boolean testFilter()
+    {
+        SkipList<Integer> list = new SkipList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            list.add(2 * i);
+        }
+        list.enableFilter(0.01);
+        // grows well past the size it was built for
+        for (int i = 1000; i < 20000; i++) {
+            list.add(2 * i);
+        }
+        for (int i = 0; i < 20000; i += 10) {
+            list.remove((Integer) (2 * i));
+        }
+
+        for (int i = 0; i < 40000; i++) {
+            boolean expected = i % 2 == 0 && (i / 2) % 10 != 0;
+            if (list.contains(i) != expected)
+                return false;
+        }
+        long misses = 20000 + 2000;
+        if (list.filterRejects() < misses * 9 / 10 || list.filterFalsePositives() > misses / 20)
+            return false;
+        if (list.filterPasses() != 40000 - list.filterRejects())
+            return false;
+
+        list.clear();
+        list.add(7);
+        return list.contains(7) && !list.contains(8);
+    }
+
+    /* makes every node carry normalizer's prefix of its element, so searches
+     * compare two longs per hop and call compareTo only when the prefixes tie.
+     * Worth it for keys whose compareTo is costly or whose prefixes rarely
+     * tie; null goes back to plain compareTo. */
+    public void setKeyNormalizer(KeyNormalizer<? super E> normalizer) {
+        this.normalizer = normalizer;
+        if (normalizer != null) {
+            for (Node<E> node = heads.get(0); node != null; node = node.next(0)) {
+                node.setPrefix(normalizer.prefix(node.value()));
             }
-            if (temp.next(lvl) == null) // next node at this level is null, go down a level
-            {
-                lvl--;
+        }
+    }
+
+    // a list given normalizer halfway through filling agrees with a sorted plain list
+    private static <T> boolean normalizedMatchesPlain(KeyNormalizer<T> normalizer, List<T> values, Random rand) {
+        SkipList<T> list = new SkipList<T>();
+        List<T> plain = new ArrayList<T>(values);
+        Collections.shuffle(plain, rand);
+        for (int i = 0; i < plain.size(); i++) {
+            if (i == plain.size() / 2) {
+                list.setKeyNormalizer(normalizer);
             }
-            else if (co.compareTo(temp.next(lvl).value()) < 0) // o is less than temp, go down a level
-            {
-                lvl--;
+            list.add(plain.get(i));
+        }
+        Collections.sort(plain, null);
+
+        // the prefixes never contradict the order
+        for (int i = 1; i < plain.size(); i++) {
+            if (Long.compareUnsigned(normalizer.prefix(plain.get(i - 1)), normalizer.prefix(plain.get(i))) > 0)
+                return false;
+        }
+        for (int i = 0; i < values.size(); i += 3) {
+            T value = values.get(i);
+            if (!list.contains(value) || list.countOf(value) != Collections.frequency(plain, value))
+                return false;
+            list.remove(value);
+            plain.remove(value);
+        }
+        return list.equals(plain);
+    }
+
+    public static boolean testKeyNormalizer()
+    {
+        Random rand = new Random(59);
+        List<Long> longs = new ArrayList<Long>(Arrays.asList(Long.MIN_VALUE, Long.MAX_VALUE, 0L, -1L, 1L));
+        List<Integer> ints = new ArrayList<Integer>(Arrays.asList(Integer.MIN_VALUE, Integer.MAX_VALUE, 0, -1));
+        List<Double> doubles = new ArrayList<Double>(Arrays.asList(
+            -0.0, 0.0, Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.MIN_VALUE, -Double.MIN_VALUE));
+        // shared prefixes longer than what fits, padding look-alikes and chars with the top bit set
+        List<String> strings = new ArrayList<String>(Arrays.asList("", "a", "a\u0000", "abcd", "abcde", "abcdf", "\uffff", "zz"));
+        List<java.nio.ByteBuffer> buffers = new ArrayList<java.nio.ByteBuffer>();
+        String alphabet = "ab\u00e9\uffff";
+        byte[] edgeBytes = {-128, -1, 0, 1, 127};
+        for (int i = 0; i < 3000; i++) {
+            longs.add(rand.nextLong() >> rand.nextInt(64));
+            ints.add(rand.nextInt(2000) - 1000);
+            doubles.add(rand.nextGaussian() * 1e6);
+            StringBuilder sb = new StringBuilder("abc");
+            for (int n = rand.nextInt(6); n > 0; n--) {
+                sb.append(alphabet.charAt(rand.nextInt(alphabet.length())));
             }
-            else if (co.compareTo(temp.next(lvl).value()) >= 0) // o is more than temp, jump to this node
-            {
-                temp = temp.next(lvl);
+            strings.add(sb.toString().substring(rand.nextInt(3)));
+            byte[] bytes = new byte[rand.nextInt(12)];
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = edgeBytes[rand.nextInt(edgeBytes.length)];
             }
+            buffers.add(java.nio.ByteBuffer.wrap(bytes));
         }
-        return false;
+        return normalizedMatchesPlain(KeyNormalizer.longs(), longs, rand)
+            && normalizedMatchesPlain(KeyNormalizer.integers(), ints, rand)
+            && normalizedMatchesPlain(KeyNormalizer.doubles(), doubles, rand)
+            && normalizedMatchesPlain(KeyNormalizer.strings(), strings, rand)
+            && normalizedMatchesPlain(KeyNormalizer.bytes(), buffers, rand);
+    }
+
+    public static boolean testFingerSearch()
+    {
+        SkipList<Integer> list = new SkipList<Integer>();
+        List<Integer> expected = new ArrayList<Integer>();
+        Random rand = new Random(42);
+
+        // near-sorted stream: timestamps with a little jitter, plus a few far jumps back
+        for (int i = 0; i < 2000; i++) {
+            int value = (i % 250 == 0) ? rand.nextInt(100) : i * 10 + rand.nextInt(30);
+            list.add(value);
+            expected.add(value);
+        }
+        for (int i = 0; i < 2000; i += 7) {
+            list.remove(expected.get(i)); // an Integer, so remove(Object)
+        }
+        for (int i = 0; i < 2000; i += 7) {
+            expected.set(i, null);
+        }
+        expected.removeAll(Collections.singleton(null));
+        Collections.sort(expected);
+
+        if (list.size() != expected.size())
+            return false;
+        int index = 0;
+        for (int value : list) {
+            if (value != expected.get(index++))
+                return false;
+        }
+        // lookups in both directions from wherever the finger was left
+        return list.contains(expected.get(0))
+            && list.contains(expected.get(expected.size() - 1))
+            && list.contains(expected.get(expected.size() / 2))
+            && !list.contains(-1)
+            && !list.contains(1000000);
     }
 
     public boolean testcontains(boolean verbose)
@@ -297,15 +1106,43 @@ public class SkipList<E> implements List<E>
         if (o == this) // seems like an obvious check, but hey now.
             return true;
 
-        Collection<?> c = (Collection<?>) o; // cast o to a generic Collection, not all objects are one, right?
+        if (!(o instanceof Collection))
+            return false;
+        Collection<?> c = (Collection<?>) o;
 
         if (c.size() != size()) // why check everything if the size is different? Gotta go fast.
             return false;
 
-        return containsAll(c);
-    }
-
-    public boolean testequals(boolean verbose)
+        if (o instanceof SkipList) {
+            SkipList<?> other = (SkipList<?>) o;
+            // both hashes already known and different means different contents
+            if (hashValid && other.hashValid && hash != other.hash)
+                return false;
+            // both lists are sorted, so one linear pass over level 0 decides it
+            Node<E> mine = heads.get(0);
+            Node<?> theirs = other.heads.get(0);
+            while (mine != null && theirs != null) {
+                if (!mine.value().equals(theirs.value()))
+                    return false;
+                mine = mine.next(0);
+                theirs = theirs.next(0);
+            }
+            return mine == null && theirs == null;
+        }
+
+        if (o instanceof List) { // same order and multiplicity, like any other List
+            Iterator<?> it = c.iterator();
+            for (Node<E> mine = heads.get(0); mine != null; mine = mine.next(0)) {
+                if (!it.hasNext() || !mine.value().equals(it.next()))
+                    return false;
+            }
+            return !it.hasNext();
+        }
+
+        return containsAll(c);
+    }
+
+    public boolean testequals(boolean verbose)
     {
         List<Integer> list = new LinkedList<Integer>();
         List<Integer> comp = new LinkedList<Integer>();
@@ -318,6 +1155,21 @@ public class SkipList<E> implements List<E>
         return list.equals(comp);
     }
 
+    public static boolean testEqualsMerge()
+    {
+        SkipList<Integer> a = new SkipList<Integer>();
+        SkipList<Integer> b = new SkipList<Integer>();
+        SkipList<Integer> c = new SkipList<Integer>();
+        a.add(3); a.add(1); a.add(3);
+        b.add(1); b.add(3); b.add(3);
+        c.add(1); c.add(1); c.add(3); // same elements as a, different multiplicity
+
+        List<Integer> plain = new ArrayList<Integer>();
+        plain.add(1); plain.add(3); plain.add(3);
+
+        return a.equals(b) && !a.equals(c) && a.equals(plain) && !a.equals("not a list");
+    }
+
     public List<E> subList(int fromIndex, int toIndex)
     {
         // we need to return a List of a generic type
@@ -408,11 +1260,22 @@ public class SkipList<E> implements List<E>
 
    public void clear() {
        count = 0;
+       fingerValid = false;
+       compactCursor = null;
+       if (filter != null) {
+           filter.clear();
+       }
        heads = new ArrayList<Node<E>>(MAX_LEVELS);
 
        // initialize with null since ArrayLists start empty
        for (int i = 0; i < MAX_LEVELS; i++) {
     	   heads.add(i, null);
+    	   tails.set(i, null);
+    	   levelCounts[i] = 0;
+       }
+       structureChanged();
+       if (listener != null) {
+           listener.cleared();
        }
     }
 
@@ -433,26 +1296,32 @@ public class SkipList<E> implements List<E>
     }
 
     public E get(int index) {
-        //sets pointer equal to head (start of the collection)
-        Node<E> pointer = heads.get(0);
-
         /* if the requested index is less than zero, or if the requested index is
          * greater than the size of collection an exception is thrown and the output prints
          * "chosen index is out of bounds"
          */
         if ( index < 0 || index >= this.count ) {
             throw new IndexOutOfBoundsException ("chosen index is out of bounds");
-        } else {
-            //uses a for loop to move the pointer to the desired index in the location
-            for (int i = 0; i < index; i++){
-                pointer = pointer.next(0);
-            }
+        }
+        return nodeAt(index).value();
+    }
 
-            /*return the value of the pointer after it has been moved to the desired index in
-             *the collection
-             */
-            return pointer.value();
+    // the node at index, taking every link whose span does not overshoot it
+    private Node<E> nodeAt(int index) {
+        Node<E> finger = null; // which means starting at the head
+        int rank = -1;
+        for (int lvl = MAX_LEVELS - 1; lvl >= 0; lvl--) {
+            Node<E> next = (finger == null) ? heads.get(lvl) : finger.next(lvl);
+            while (next != null && rank + spanOf(finger, lvl) <= index) {
+                rank += spanOf(finger, lvl);
+                finger = next;
+                next = finger.next(lvl);
+            }
+            if (rank == index) {
+                break;
+            }
         }
+        return finger;
     }
 
     public static boolean testGet() {
@@ -848,62 +1717,198 @@ public class SkipList<E> implements List<E>
     {
         if ( index < 0 || index >= this.count ) {
             throw new IndexOutOfBoundsException ("chosen index is out of bounds");
-        } else if(index == 0) {// special case
-            Node<E> currentNode = heads.get(0);
-            E currentData = currentNode.value();
+        }
+        fingerValid = false; // the path is borrowed for this
+        pathBefore(index, fingerPath, fingerRanks);
+        Node<E> finger = fingerPath.get(0);
+        Node<E> currentNode = (finger == null) ? heads.get(0) : finger.next(0);
+        unlink(currentNode, fingerPath, fingerRanks);
+        return currentNode.value();
+    }
+
+    /* told about every element removeRange takes out, in order, from the walk
+     * it makes anyway, so a subclass keeping its own books about elements
+     * does not have to copy the range out first */
+    protected void removedInRange(E e) {
+    }
 
-            for(int i = 0; i < currentNode.levels(); i++) {
-                heads.set(i,currentNode.next(i));
+    // the last node before index on every level (null for the head) and its index, straight down the spans
+    private void pathBefore(int index, ArrayList<Node<E>> path, int[] ranks) {
+        Node<E> finger = null; // which means starting at the head
+        int rank = -1;
+        for (int lvl = MAX_LEVELS - 1; lvl >= 0; lvl--) {
+            Node<E> next = (finger == null) ? heads.get(lvl) : finger.next(lvl);
+            while (next != null && rank + spanOf(finger, lvl) < index) {
+                rank += spanOf(finger, lvl);
+                finger = next;
+                next = finger.next(lvl);
             }
-            this.count--;
-            return currentData;
+            path.set(lvl, finger);
+            ranks[lvl] = rank;
+        }
+    }
 
+    /* removes the elements from fromIndex up to but not including toIndex and
+     * returns how many went. One descent finds the node before the run on
+     * every level and one the last node of it, and then each level is spliced
+     * once; only the walk settling the removed nodes' bookkeeping grows with
+     * the run, and it does no searching. */
+    public int removeRange(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > count || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("range is out of bounds");
+        }
+        int removed = toIndex - fromIndex;
+        if (removed == 0) {
+            return 0;
+        }
+        fingerValid = false; // the path is borrowed for this
+        pathBefore(fromIndex, fingerPath, fingerRanks);
+        ArrayList<Node<E>> lastPath = new ArrayList<Node<E>>(fingerPath);
+        int[] lastRanks = new int[MAX_LEVELS];
+        pathBefore(toIndex, lastPath, lastRanks); // the run's last node on levels it reaches
+
+        Node<E> first = (fingerPath.get(0) == null) ? heads.get(0) : fingerPath.get(0).next(0);
+        for (int lvl = 0; lvl < MAX_LEVELS; lvl++) {
+            Node<E> pred = fingerPath.get(lvl);
+            Node<E> last = lastPath.get(lvl);
+            if (pred == null && heads.get(lvl) == null) {
+                break; // empty from here up
+            }
+            if (last == pred) {
+                // none of the run is on this level, the link over it just gets shorter
+                setSpan(pred, lvl, spanOf(pred, lvl) - removed);
+                continue;
+            }
+            // pred now links to wherever last did, minus the run
+            setSpan(pred, lvl, lastRanks[lvl] + last.span(lvl) - fingerRanks[lvl] - removed);
+            if (pred == null) { // flag for the heads pointers
+                heads.set(lvl, last.next(lvl));
+            } else { // affects a node
+                pred.setNext(lvl, last.next(lvl));
+            }
+            if (tails.get(lvl) == last) {
+                tails.set(lvl, pred);
+            }
+        }
+
+        // the removed nodes still link to each other on level 0
+        Node<E> node = first;
+        for (int i = 0; i < removed; i++, node = node.next(0)) {
+            for (int lvl = 0; lvl < node.levels(); lvl++) {
+                levelCounts[lvl]--;
+            }
+            if (filter != null) {
+                filter.remove(node.value());
+            }
+            removedInRange(node.value());
+        }
+        if (summarized()) {
+            refreshAfterRemove(fingerPath);
+        }
+        count -= removed;
+        structureChanged();
+        compactionRemoved(fromIndex, removed, fingerPath, fingerRanks);
+        if (listener != null) {
+            node = first;
+            for (int i = 0; i < removed; i++, node = node.next(0)) {
+                listener.removed(node.value());
+            }
+        }
+        return removed;
+    }
+
+    /* removes every element from fromKey (included) up to toKey (excluded),
+     * such as everything older than a retention cutoff, and returns how many
+     * went */
+    @SuppressWarnings("unchecked")
+    public int removeRange(E fromKey, E toKey) {
+        Comparable<E> cfrom = (Comparable<E>) fromKey;
+        if (cfrom.compareTo(toKey) > 0) {
+            throw new IllegalArgumentException("fromKey is after toKey");
+        }
+        return removeRange(rankOf(cfrom, false), rankOf((Comparable<E>) toKey, false));
+    }
 
-        } else {// normal case
-            // data of node corresponding to index
-            E currentData = get(index);
+    public static boolean testRemoveRange() {
+        SkipList<Integer> list = new SkipList<Integer>(Monoid.<Integer>sum());
+        list.enableFilter(0.01);
+        final int[] heard = new int[1];
+        list.setChangeListener(new ChangeListener<Integer>() {
+            public void added(Integer element) {
+            }
 
-            // Cast e to Comparable to use the CompareTo method
-            @SuppressWarnings("unchecked")
-            Comparable<E> ce = (Comparable<E>) currentData;
+            public void removed(Integer element) {
+                heard[0]++;
+            }
 
-            // filling removePath with all the nodes to potentially be updated
-            ArrayList<Node<E>> removePath = new ArrayList<Node<E>>(MAX_LEVELS);
-            for (int i = 0; i < MAX_LEVELS; i++) {
-                removePath.add(i, null);
-            }
-
-            Node<E> finger = null; // which means starting at the head
-            for (int lvl = MAX_LEVELS - 1; lvl >= 0; lvl--) {
-                if (finger == null) { // when finger is at the head
-                    if (heads.get(lvl) == null || ce.compareTo(heads.get(lvl).value()) < 0) {
-                        removePath.set(lvl, null); // we'll have to update the head
-                    } else { // traveling on the level
-                        finger = heads.get(lvl);
-                        while ((finger.next(lvl) != null) && ce.compareTo(finger.next(lvl).value()) > 0) {
-                            finger = finger.next(lvl);
-                        }
-                        removePath.set(lvl, finger);
-                    }
-                } else{ // finger is at a node
-                    while ((finger.next(lvl) != null) && ce.compareTo(finger.next(lvl).value()) > 0) {
-                        finger = finger.next(lvl);
+            public void cleared() {
+            }
+        });
+        List<Integer> plain = new ArrayList<Integer>();
+        Random rand = new Random(53);
+        for (int i = 0; i < 20000; i++) {
+            int value = rand.nextInt(100000);
+            list.add(value);
+            plain.add(value);
+        }
+        Collections.sort(plain);
+
+        int expectedHeard = 0;
+        for (int round = 0; round < 200; round++) {
+            if (round % 2 == 0) {
+                int from = rand.nextInt(plain.size() + 1);
+                int to = Math.min(plain.size(), from + rand.nextInt(100));
+                if (list.removeRange(from, to) != to - from)
+                    return false;
+                plain.subList(from, to).clear();
+                expectedHeard += to - from;
+            } else {
+                int fromKey = rand.nextInt(100000);
+                int toKey = fromKey + rand.nextInt(200);
+                int before = plain.size();
+                for (Iterator<Integer> it = plain.iterator(); it.hasNext(); ) {
+                    int v = it.next();
+                    if (v >= fromKey && v < toKey) {
+                        it.remove();
                     }
-                    removePath.set(lvl, finger);
                 }
+                if (list.removeRange((Integer) fromKey, (Integer) toKey) != before - plain.size())
+                    return false;
+                expectedHeard += before - plain.size();
             }
+            int value = rand.nextInt(100000); // adds in between, some through the append path
+            list.add(value);
+            int at = Collections.binarySearch(plain, value);
+            plain.add(at < 0 ? -at - 1 : at, value);
+        }
 
-            // node corresponding to index
-            Node<E> currentNode = removePath.get(0);
-            // modify the reference
-            for(int i = 0; i < currentNode.levels(); i++) {
-                removePath.get(i).setNext(i, currentNode.next(i));
-            }
-            // modify the size of list
-            this.count--;
-            return currentNode.value();
+        // retention trimming: drop everything below a cutoff in one go
+        int cutoff = plain.get(plain.size() / 2);
+        int gone = plain.indexOf(cutoff);
+        if (list.removeRange(list.peekFirst(), (Integer) cutoff) != gone)
+            return false;
+        plain.subList(0, gone).clear();
+        expectedHeard += gone;
 
+        long sum = 0;
+        for (int v : plain) {
+            sum += v;
         }
+        double aggregate = list.aggregate(plain.get(0), plain.get(plain.size() - 1));
+        for (int i = 0; i < plain.size(); i += 11) {
+            if (!list.get(i).equals(plain.get(i)))
+                return false;
+        }
+        list.removeRange(list.size() - 5, list.size()); // the tails move back
+        plain.subList(plain.size() - 5, plain.size()).clear();
+        expectedHeard += 5;
+        return list.equals(plain)
+            && aggregate == sum
+            && heard[0] == expectedHeard
+            && list.levelCounts[0] == plain.size()
+            && list.peekLast().equals(plain.get(plain.size() - 1))
+            && !list.contains(cutoff - 1)
+            && list.removeRange(0, 0) == 0;
     }
 
     // Test the remove () method
@@ -921,13 +1926,13 @@ public class SkipList<E> implements List<E>
         testList.add(9);
 
         testList.remove(0);
-        testList.remove(4);
+        testList.remove(4); // 9, leaving 3 4 4 8 23 786
 
 
         return (
             (testList.get(0) == 3) &&
             (testList.get(1) == 4) &&
-            (testList.get(4) == 9)
+            (testList.get(4) == 23)
             );
     }
 
@@ -936,34 +1941,15 @@ public class SkipList<E> implements List<E>
         //Cast e to Comparable to use the CompareTo method
         @SuppressWarnings("unchecked")
         Comparable<E> ce = (Comparable<E>)o;
+        @SuppressWarnings("unchecked")
+        E key = (E)o;
 
-        // filling addPath with all the nodes to potentially be updated
-        ArrayList<Node<E>> removePath = new ArrayList<Node<E>>(MAX_LEVELS);
-        for (int i = 0; i < MAX_LEVELS; i++) {
-            removePath.add(i,null);
-        }
-
-        Node<E> finger = null; // which means starting at the head
-        for (int lvl = MAX_LEVELS - 1; lvl >= 0; lvl--) {
-            if (finger == null) { // when finger is at the head
-                if (heads.get(lvl) == null || ce.compareTo(heads.get(lvl).value()) <= 0) {
-                    removePath.set(lvl, null); // we'll have to update the head
-                } else { // traveling on the level
-                    finger = heads.get(lvl);
-                    while ( (finger.next(lvl) != null)
-                        && ce.compareTo(finger.next(lvl).value()) > 0 ) {
-                        finger = finger.next(lvl);
-                    }
-                    removePath.set(lvl, finger);
-                }
-            } else { // finger is at a node
-                while ( (finger.next(lvl) != null)
-                    && ce.compareTo(finger.next(lvl).value()) > 0 ) {
-                    finger = finger.next(lvl);
-                }
-                removePath.set(lvl,finger);
-            }
-        }
+        // filling fingerPath with all the nodes to potentially be updated
+        findPredecessor(ce, true);
+        ArrayList<Node<E>> removePath = fingerPath;
+        // the nodes before o are never the one removed, so the path stays good either way
+        fingerValue = key;
+        fingerValid = true;
 
         Node<E> removeNode;
         if (removePath.get(0) == null) { // the head is pointing to the element to be removed
@@ -977,18 +1963,45 @@ public class SkipList<E> implements List<E>
         if ( (removeNode == null) || (!ce.equals(removeNode.value() ) ) ) {
             return false;
         }
-        int removeNodeLevels = removeNode.levels();
+        unlink(removeNode, removePath, fingerRanks);
+        return true;
+    }
 
-        // remove the node in the skiplist
-        for (int lvl = 0; lvl < removeNodeLevels; lvl++) {
-            if (removePath.get(lvl) == null) { // flag for the heads pointers
-                heads.set(lvl,removeNode.next(lvl));
+    /* unlinks node from every level it is on, preds holding the node before
+     * it (null for the head) and predRanks their indexes */
+    private void unlink(Node<E> node, ArrayList<Node<E>> preds, int[] predRanks) {
+        for (int lvl = 0; lvl < node.levels(); lvl++) {
+            // the link into node and the one out of it become one, minus node itself
+            setSpan(preds.get(lvl), lvl, spanOf(preds.get(lvl), lvl) + node.span(lvl) - 1);
+            if (preds.get(lvl) == null) { // flag for the heads pointers
+                heads.set(lvl, node.next(lvl));
             } else { // affects a node
-                removePath.get(lvl).setNext(lvl, removeNode.next(lvl));
+                preds.get(lvl).setNext(lvl, node.next(lvl));
+            }
+            if (tails.get(lvl) == node) {
+                tails.set(lvl, preds.get(lvl));
+            }
+            levelCounts[lvl]--;
+        }
+        for (int lvl = node.levels(); lvl < MAX_LEVELS; lvl++) {
+            Node<E> pred = preds.get(lvl);
+            if (pred == null && heads.get(lvl) == null) {
+                break; // empty from here up
             }
+            setSpan(pred, lvl, spanOf(pred, lvl) - 1);
+        }
+        if (filter != null) {
+            filter.remove(node.value());
+        }
+        if (summarized()) {
+            refreshAfterRemove(preds);
         }
         count--;
-        return true;
+        structureChanged();
+        compactionRemoved(predRanks[0] + 1, 1, preds, predRanks);
+        if (listener != null) {
+            listener.removed(node.value());
+        }
     }
 
     //removes any elements from SkipList that are contained in collection c
@@ -1059,22 +2072,632 @@ public class SkipList<E> implements List<E>
         );
     }
 
+    // Deque style access to the two ends of the list
+
+    // the smallest element, or null when the list is empty
+    public E peekFirst() {
+        return isEmpty() ? null : heads.get(0).value();
+    }
+
+    // the largest element, or null when the list is empty
+    public E peekLast() {
+        return isEmpty() ? null : tails.get(0).value();
+    }
+
+    // removes and returns the smallest element, or null when the list is empty
+    public E pollFirst() {
+        return isEmpty() ? null : remove(0);
+    }
+
+    // removes and returns the largest element, or null when the list is empty
+    public E pollLast() {
+        if (isEmpty()) {
+            return null;
+        }
+        Node<E> last = tails.get(0);
+
+        // predecessors of the last node on each of its levels
+        fingerValid = false; // the path is borrowed for this
+        Node<E> finger = null; // which means starting at the head
+        int rank = -1;
+        for (int lvl = MAX_LEVELS - 1; lvl >= 0; lvl--) {
+            Node<E> next = (finger == null) ? heads.get(lvl) : finger.next(lvl);
+            while (next != null && next != last) {
+                rank += spanOf(finger, lvl);
+                finger = next;
+                next = finger.next(lvl);
+            }
+            fingerPath.set(lvl, finger);
+            fingerRanks[lvl] = rank;
+        }
+        unlink(last, fingerPath, fingerRanks);
+        return last.value();
+    }
+
+    // a priority queue view: offer adds in order, poll and peek work on the smallest element
+    public Queue<E> asQueue() {
+        return new AbstractQueue<E>() {
+            public boolean offer(E e) {
+                return SkipList.this.add(e);
+            }
+
+            public E poll() {
+                return pollFirst();
+            }
+
+            public E peek() {
+                return peekFirst();
+            }
+
+            public int size() {
+                return SkipList.this.size();
+            }
+
+            public Iterator<E> iterator() {
+                return SkipList.this.iterator();
+            }
+        };
+    }
+
+    public static boolean testPeekAndPoll() {
+        SkipList<Integer> list = new SkipList<Integer>();
+        if (list.peekFirst() != null || list.pollLast() != null)
+            return false;
+
+        for (int i = 0; i < 200; i++) {
+            list.add((i * 37) % 200);
+        }
+        // alternate between the ends until it is empty
+        for (int i = 0; i < 100; i++) {
+            if (list.peekFirst() != i || list.pollFirst() != i)
+                return false;
+            if (list.peekLast() != 199 - i || list.pollLast() != 199 - i)
+                return false;
+        }
+        if (!list.isEmpty() || list.peekLast() != null)
+            return false;
+
+        // the tail pointers must be right again after refilling
+        list.add(5);
+        list.add(9);
+        list.add(7);
+        list.remove((Integer) 9);
+        return list.peekLast() == 7 && list.size() == 2;
+    }
+
+    public static boolean testQueueView() {
+        SkipList<Integer> list = new SkipList<Integer>();
+        Queue<Integer> deadlines = list.asQueue();
+        deadlines.offer(30);
+        deadlines.offer(10);
+        deadlines.offer(20);
+        return deadlines.peek() == 10
+            && deadlines.poll() == 10
+            && deadlines.poll() == 20
+            && deadlines.size() == 1
+            && list.size() == 1;
+    }
+
+    // Range aggregates
+
+    /* the monoid summary of every element between fromKey and toKey, both
+     * included. Starting at fromKey it takes the highest link that does not
+     * pass toKey, so the walk climbs and then descends like a search. */
+    @SuppressWarnings("unchecked")
+    public <A> A aggregate(E fromKey, E toKey) {
+        if (monoid == null) {
+            throw new IllegalStateException("this list was not created with a Monoid");
+        }
+        Comparable<E> cto = (Comparable<E>) toKey;
+        E last = peekLast();
+
+        Object total = monoid.identity();
+        Node<E> before = findPredecessor((Comparable<E>) fromKey, false);
+        Node<E> node = (before == null) ? heads.get(0) : before.next(0);
+        int lvl = 0;
+        while (node != null && cto.compareTo(node.value()) >= 0) {
+            lvl = Math.min(lvl + 1, node.levels() - 1);
+            while (lvl > 0 && !linkEndsBy(node.next(lvl), cto, last)) {
+                lvl--;
+            }
+            total = monoid.combine(total, node.aggregate(lvl));
+            node = node.next(lvl);
+        }
+        return (A) total;
+    }
+
+    // true when everything before next (or up to the end when next is null) is at most cto
+    private boolean linkEndsBy(Node<E> next, Comparable<E> cto, E last) {
+        return (next == null) ? cto.compareTo(last) >= 0 : cto.compareTo(next.value()) >= 0;
+    }
+
+    // whether links carry summaries that have to follow every change
+    private boolean summarized() {
+        return monoid != null || hashTracked;
+    }
+
+    // recomputes node's summaries on lvl from the summaries one level down
+    private void refreshLink(Node<E> node, int lvl) {
+        if (monoid != null) {
+            refreshAggregate(node, lvl);
+        }
+        if (hashTracked) {
+            refreshHash(node, lvl);
+        }
+    }
+
+    private void refreshAggregate(Node<E> node, int lvl) {
+        if (lvl == 0) {
+            node.setAggregate(0, monoid.of(node.value()));
+            return;
+        }
+        Object total = node.aggregate(lvl - 1);
+        Node<E> end = node.next(lvl);
+        for (Node<E> n = node.next(lvl - 1); n != end; n = n.next(lvl - 1)) {
+            total = monoid.combine(total, n.aggregate(lvl - 1));
+        }
+        node.setAggregate(lvl, total);
+    }
+
+    // bottom up, so each level reads summaries that are already right
+    private void refreshAfterInsert(Node<E> node, ArrayList<Node<E>> preds) {
+        refreshLink(node, 0);
+        for (int lvl = 1; lvl < MAX_LEVELS; lvl++) {
+            if (lvl < node.levels()) {
+                refreshLink(node, lvl);
+            }
+            if (preds.get(lvl) != null) {
+                refreshLink(preds.get(lvl), lvl);
+            } else if (lvl >= node.levels()) {
+                break; // only the head is left above here, and it keeps no summaries
+            }
+        }
+    }
+
+    private void refreshAfterRemove(ArrayList<Node<E>> preds) {
+        for (int lvl = 1; lvl < MAX_LEVELS && preds.get(lvl) != null; lvl++) {
+            refreshLink(preds.get(lvl), lvl);
+        }
+    }
+
+    public static boolean testAggregate() {
+        SkipList<Integer> counts = new SkipList<Integer>(Monoid.<Integer>count());
+        SkipList<Integer> sums = new SkipList<Integer>(Monoid.<Integer>sum());
+        List<Integer> plain = new ArrayList<Integer>();
+        Random rand = new Random(5);
+
+        for (int i = 0; i < 1500; i++) {
+            int value = rand.nextInt(1000);
+            counts.add(value);
+            sums.add(value);
+            plain.add(value);
+        }
+        for (int i = 0; i < 500; i++) {
+            Integer value = rand.nextInt(1000);
+            counts.remove(value);
+            sums.remove(value);
+            plain.remove(value);
+        }
+        counts.pollFirst(); sums.pollFirst(); plain.remove(Collections.min(plain));
+        counts.pollLast(); sums.pollLast(); plain.remove(Collections.max(plain));
+
+        for (int i = 0; i < 200; i++) {
+            int from = rand.nextInt(1100) - 50;
+            int to = from + rand.nextInt(400);
+            long expectedCount = 0;
+            double expectedSum = 0;
+            for (int value : plain) {
+                if (value >= from && value <= to) {
+                    expectedCount++;
+                    expectedSum += value;
+                }
+            }
+            long count = counts.aggregate(from, to);
+            double sum = sums.aggregate(from, to);
+            if (count != expectedCount || sum != expectedSum)
+                return false;
+        }
+        return true;
+    }
+
+    // Change notification
+
+    /* listener hears about every add and removal right after it is made, and
+     * about clear; compaction and other reshaping do not count. Pass null to
+     * stop. It runs on the mutating thread, so it should be quick. A list has
+     * one listener, so this replaces any earlier one. */
+    public void setChangeListener(ChangeListener<? super E> listener) {
+        this.listener = listener;
+    }
+
+    // the listener set by setChangeListener, or null
+    public ChangeListener<? super E> changeListener() {
+        return listener;
+    }
+
+    public static boolean testChangeListener() {
+        final List<String> seen = new ArrayList<String>();
+        SkipList<Integer> list = new SkipList<Integer>();
+        list.setChangeListener(new ChangeListener<Integer>() {
+            public void added(Integer element) {
+                seen.add("+" + element);
+            }
+
+            public void removed(Integer element) {
+                seen.add("-" + element);
+            }
+
+            public void cleared() {
+                seen.add("clear");
+            }
+        });
+        list.add(5);
+        list.add(9);  // the append path
+        list.add(1);
+        list.remove((Integer) 5);
+        list.remove((Integer) 7); // absent, so nothing to report
+        list.pollLast();
+        list.remove(0);
+        list.add(3);
+        list.clear();
+        return seen.equals(Arrays.asList("+5", "+9", "+1", "-5", "-9", "-1", "+3", "clear"));
+    }
+
+    // Compaction
+
+    /* a snapshot of the list's shape: how many links the nodes carry and
+     * roughly how many steps a search takes. Two of them describe a pass. */
+    public static class CompactionReport {
+        public final long links;          // next pointers over all nodes
+        public final double searchSteps;  // expected nodes visited by one search
+
+        CompactionReport(long links, double searchSteps) {
+            this.links = links;
+            this.searchSteps = searchSteps;
+        }
+
+        public String toString() {
+            return links + " links, about " + String.format("%.1f", searchSteps) + " steps per search";
+        }
+    }
+
+    // the current shape, from the per-level node counts
+    public CompactionReport shape() {
+        long links = 0;
+        double steps = 0;
+        for (int lvl = 0; lvl < MAX_LEVELS && levelCounts[lvl] > 0; lvl++) {
+            links += levelCounts[lvl];
+            // a search crosses about half the level lvl nodes between two nodes one level up, then drops
+            int above = (lvl + 1 < MAX_LEVELS) ? levelCounts[lvl + 1] : 0;
+            steps += 1 + (double) levelCounts[lvl] / (above + 1) / 2;
+        }
+        return new CompactionReport(links, steps);
+    }
+
+    // before and after of the last finished compaction pass, or null if none finished
+    public CompactionReport[] lastCompaction() {
+        return (lastCompaction == null) ? null : new CompactionReport[] {compactStart, lastCompaction};
+    }
+
+    /* reshapes the whole list toward a perfect skip list, where the node at
+     * 1-based index i has height 1 + (trailing zero bits of i), and trims every
+     * node's links to that height. Returns the shape before and after. */
+    public CompactionReport[] compact() {
+        compactCursor = null; // always a full pass from the front
+        while (!compactStep(Integer.MAX_VALUE)) {
+        }
+        return lastCompaction();
+    }
+
+    /* reshapes up to budget more nodes of the running pass, starting one if
+     * needed, and returns true once the pass reaches the end. The list is a
+     * valid skip list between steps, so this can be spread over idle time.
+     * Adds and removes in between do not restart the pass: one past the
+     * cursor is reshaped when the pass gets there, and one in the part
+     * already done keeps its own height until the next pass. */
+    public boolean compactStep(int budget) {
+        if (compactCursor == null) {
+            if (isEmpty()) {
+                return true;
+            }
+            compactCursor = heads.get(0);
+            compactIndex = 0;
+            compactLast = new ArrayList<Node<E>>(MAX_LEVELS);
+            compactLastRanks = new int[MAX_LEVELS];
+            for (int i = 0; i < MAX_LEVELS; i++) {
+                compactLast.add(i, null);
+                compactLastRanks[i] = -1;
+            }
+            compactStart = shape();
+        }
+        fingerValid = false; // heights are about to change under the finger
+
+        // nodes whose links change this step, so the aggregates can be redone afterwards
+        ArrayList<Node<E>> touched = summarized() ? new ArrayList<Node<E>>() : null;
+        if (touched != null) {
+            addNodes(touched, compactLast);
+        }
+
+        while (budget-- > 0 && compactCursor != null) {
+            Node<E> node = compactCursor;
+            Node<E> following = node.next(0);
+            int oldHeight = node.levels();
+            int height = Math.min(MAX_LEVELS, 1 + Integer.numberOfTrailingZeros(compactIndex + 1));
+
+            // where the node's links go on each of its new levels, and how far they jump
+            ArrayList<Node<E>> after = new ArrayList<Node<E>>(height);
+            int[] afterSpans = new int[height];
+            for (int lvl = 0; lvl < Math.max(height, oldHeight); lvl++) {
+                Node<E> before = compactLast.get(lvl);
+                int fromBefore = compactIndex - compactLastRanks[lvl];
+                if (lvl < height) {
+                    if (lvl < oldHeight) {
+                        after.add(lvl, node.next(lvl));
+                        afterSpans[lvl] = node.span(lvl);
+                    } else { // new level: take over the link that used to jump past this node
+                        after.add(lvl, (before == null) ? heads.get(lvl) : before.next(lvl));
+                        afterSpans[lvl] = spanOf(before, lvl) - fromBefore;
+                        levelCounts[lvl]++;
+                    }
+                } else { // dropped level: the link into this node now skips it
+                    setSpan(before, lvl, fromBefore + node.span(lvl));
+                    if (before == null) {
+                        heads.set(lvl, node.next(lvl));
+                    } else {
+                        before.setNext(lvl, node.next(lvl));
+                    }
+                    if (tails.get(lvl) == node) {
+                        tails.set(lvl, before);
+                    }
+                    levelCounts[lvl]--;
+                }
+            }
+
+            node.setLevels(height);
+            for (int lvl = 0; lvl < height; lvl++) {
+                node.setNext(lvl, after.get(lvl));
+                node.setSpan(lvl, afterSpans[lvl]);
+                setSpan(compactLast.get(lvl), lvl, compactIndex - compactLastRanks[lvl]);
+                if (compactLast.get(lvl) == null) {
+                    heads.set(lvl, node);
+                } else {
+                    compactLast.get(lvl).setNext(lvl, node);
+                }
+                if (after.get(lvl) == null) {
+                    tails.set(lvl, node);
+                }
+                compactLast.set(lvl, node);
+                compactLastRanks[lvl] = compactIndex;
+            }
+            if (touched != null) {
+                touched.add(node);
+            }
+            compactIndex++;
+            compactCursor = following;
+        }
+
+        if (touched != null) {
+            addNodes(touched, compactLast);
+            // bottom up, so each level reads summaries that are already right
+            for (int lvl = 1; lvl < MAX_LEVELS; lvl++) {
+                for (Node<E> node : touched) {
+                    if (lvl < node.levels()) {
+                        refreshLink(node, lvl);
+                    }
+                }
+            }
+        }
+
+        if (compactCursor == null) {
+            lastCompaction = shape();
+            return true;
+        }
+        return false;
+    }
+
+    private static <E> void addNodes(ArrayList<Node<E>> into, ArrayList<Node<E>> from) {
+        for (Node<E> node : from) {
+            if (node != null) {
+                into.add(node);
+            }
+        }
+    }
+
+    // moves the running pass past node, just linked in at rank
+    private void compactionInserted(Node<E> node, int rank) {
+        if (compactCursor == null || rank > compactIndex) {
+            return; // nothing running, or the pass gets to it in turn
+        }
+        if (rank == compactIndex) {
+            compactCursor = node; // right before the cursor, so it is next
+            return;
+        }
+        compactIndex++;
+        for (int lvl = 0; lvl < MAX_LEVELS; lvl++) {
+            if (compactLastRanks[lvl] >= rank) {
+                compactLastRanks[lvl]++;
+            } else if (lvl < node.levels()) { // now the last node before the cursor on lvl
+                compactLast.set(lvl, node);
+                compactLastRanks[lvl] = rank;
+            }
+        }
+    }
+
+    /* moves the running pass past the removed run of nodes from index from,
+     * preds holding the node before the run on every level and predRanks
+     * their indexes */
+    private void compactionRemoved(int from, int removed, ArrayList<Node<E>> preds, int[] predRanks) {
+        if (compactCursor == null || from > compactIndex) {
+            return;
+        }
+        for (int lvl = 0; lvl < MAX_LEVELS; lvl++) {
+            if (compactLastRanks[lvl] >= from + removed) {
+                compactLastRanks[lvl] -= removed;
+            } else if (compactLastRanks[lvl] >= from) { // it went, the node before the run takes over
+                compactLast.set(lvl, preds.get(lvl));
+                compactLastRanks[lvl] = predRanks[lvl];
+            }
+        }
+        if (from + removed <= compactIndex) {
+            compactIndex -= removed;
+            return;
+        }
+        // the cursor went with the run, so the pass carries on with whatever follows it
+        compactIndex = from;
+        compactCursor = (preds.get(0) == null) ? heads.get(0) : preds.get(0).next(0);
+        if (compactCursor == null) {
+            lastCompaction = shape();
+        }
+    }
+
+    public static boolean testCompact() {
+        SkipList<Integer> list = new SkipList<Integer>(Monoid.<Integer>count());
+        for (int i = 0; i < 4096; i++) {
+            list.add(i);
+        }
+        // skewed removals leave a lopsided shape behind
+        for (int i = 0; i < 4096; i++) {
+            if (i % 8 != 0 && i < 3500) {
+                list.remove((Integer) i);
+            }
+        }
+        int size = list.size();
+
+        // a few small steps, with lookups in between, then the rest
+        list.compactStep(100);
+        if (!list.contains(800) || list.contains(801))
+            return false;
+        list.compactStep(100);
+        while (!list.compactStep(100)) {
+        }
+        CompactionReport[] report = list.lastCompaction();
+
+        // every node now has exactly its ideal height
+        int index = 1;
+        for (Node<Integer> node = list.heads.get(0); node != null; node = node.next(0)) {
+            if (node.levels() != 1 + Integer.numberOfTrailingZeros(index++))
+                return false;
+        }
+        long counted = list.aggregate(0, 4096);
+        return report != null
+            && report[1].links <= 2 * size
+            && list.size() == size
+            && counted == size
+            && list.peekLast() == 4095
+            && list.contains(3496) && !list.contains(3495);
+    }
+
+    public static boolean testCompactUnderWrites() {
+        SkipList<Integer> list = new SkipList<Integer>(Monoid.<Integer>count());
+        List<Integer> plain = new ArrayList<Integer>(); // kept sorted
+        Random rand = new Random(23);
+        for (int i = 0; i < 4000; i++) {
+            list.add(rand.nextInt(100000));
+        }
+        plain.addAll(list);
+
+        // every step is followed by writes all over the list, in front of the cursor and behind it
+        boolean done = false;
+        for (int step = 0; !done && step < 1000; step++) {
+            done = list.compactStep(50);
+            for (int i = 0; i < 3; i++) {
+                int value = rand.nextInt(100000);
+                int at = Collections.binarySearch(plain, value);
+                plain.add((at < 0) ? -at - 1 : at, value);
+                list.add(value);
+            }
+            int index = rand.nextInt(plain.size());
+            if (!list.remove(index).equals(plain.remove(index)))
+                return false;
+            list.remove(plain.remove(rand.nextInt(plain.size()))); // an Integer, so remove(Object)
+            if (step % 5 == 0) {
+                index = rand.nextInt(plain.size() - 3);
+                list.removeRange(index, index + 3);
+                plain.subList(index, index + 3).clear();
+                if (!list.pollLast().equals(plain.remove(plain.size() - 1)))
+                    return false;
+            }
+        }
+        if (!done || list.lastCompaction() == null || !list.equals(plain))
+            return false;
+
+        // every level still adds up: its spans reach the end and its nodes are all counted
+        for (int lvl = 0; lvl < MAX_LEVELS; lvl++) {
+            int reach = (list.heads.get(lvl) == null) ? 0 : list.headSpans[lvl];
+            int nodes = 0;
+            for (Node<Integer> node = list.heads.get(lvl); node != null; node = node.next(lvl)) {
+                reach += node.span(lvl);
+                nodes++;
+            }
+            if (nodes != list.levelCounts[lvl] || (nodes > 0 && reach != list.size() + 1))
+                return false;
+        }
+        for (int i = 0; i < plain.size(); i += 3) {
+            if (!list.get(i).equals(plain.get(i)))
+                return false;
+        }
+        long counted = list.aggregate(0, 100000);
+        return counted == plain.size();
+    }
+
     // Group 6
 
     public int hashCode()
     {
-            int hashCode = 1;
-    		//Starts the finger at the heads
-    		Node<E> finger = heads.get(0);
-    		//Moves finger over to a node where a value might be stored.
-    		finger.next(0);
-    		//If the list isn't empty or if finger hasn't reached the end it'll hash the current value and move to the next.
-    		while (finger != null)
-        {
-    			  hashCode = 31*hashCode + (finger == null ? 0 : finger.value().hashCode());
-    			  finger = finger.next(0);
-    		}
-            return hashCode;
+        // the first call pays O(n) to give every link its summary; from then
+        // on each add or remove keeps the hash up to date in O(log n)
+        if (hashValid)
+            return hash;
+
+        hashTracked = true;
+        for (int lvl = 0; lvl < MAX_LEVELS && heads.get(lvl) != null; lvl++) {
+            for (Node<E> node = heads.get(lvl); node != null; node = node.next(lvl)) {
+                refreshHash(node, lvl);
+            }
+        }
+        hash = hashFromSummaries();
+        hashValid = true;
+        return hash;
+    }
+
+    /* List.hashCode is 31 * h + e over the elements from h = 1, so a run of
+     * them contributes the pair (its hash started from 0, 31 to the power of
+     * its length), and two runs in a row combine like this. Packed in a long,
+     * the hash in the high half and the power in the low one. */
+    private static long combineHashes(long left, long right) {
+        int h = (int) (left >>> 32) * (int) right + (int) (right >>> 32);
+        int power = (int) left * (int) right;
+        return ((long) h << 32) | (power & 0xffffffffL);
+    }
+
+    private void refreshHash(Node<E> node, int lvl) {
+        if (lvl == 0) {
+            node.setHash(0, ((long) node.value().hashCode() << 32) | 31);
+            return;
+        }
+        long total = node.hash(lvl - 1);
+        Node<E> end = node.next(lvl);
+        for (Node<E> n = node.next(lvl - 1); n != end; n = n.next(lvl - 1)) {
+            total = combineHashes(total, n.hash(lvl - 1));
+        }
+        node.setHash(lvl, total);
+    }
+
+    /* the whole list's hash in O(log n): the head keeps no summaries, so what
+     * comes before the first node of a level is what the level below has up
+     * to it, and the top level runs to the end */
+    private int hashFromSummaries() {
+        long total = 1; // no elements: hash 0, power 1
+        for (int lvl = 0; lvl < MAX_LEVELS; lvl++) {
+            Node<E> end = (lvl + 1 < MAX_LEVELS) ? heads.get(lvl + 1) : null;
+            for (Node<E> node = heads.get(lvl); node != end; node = node.next(lvl)) {
+                total = combineHashes(total, node.hash(lvl));
+            }
+            if (end == null) {
+                break;
+            }
+        }
+        return (int) (total >>> 32) + (int) total; // 1 * 31^n plus the elements' part
     }
 
     public boolean testHashCode()
@@ -1093,17 +2716,69 @@ public class SkipList<E> implements List<E>
         return (testList1.hashCode() == testList2.hashCode());
     }
 
+    public static boolean testHashCodeTracksChanges()
+    {
+        SkipList<Integer> list = new SkipList<Integer>();
+        List<Integer> plain = new ArrayList<Integer>();
+        if (list.hashCode() != plain.hashCode())
+            return false;
+
+        list.add(5);
+        list.add(2);
+        plain.add(2);
+        plain.add(5);
+        int before = list.hashCode();
+        if (before != plain.hashCode() || list.hashCode() != before)
+            return false;
+
+        list.remove((Integer) 5);
+        plain.remove((Integer) 5);
+        if (list.hashCode() != plain.hashCode())
+            return false;
+
+        // once hashed, every kind of write keeps the hash right, with or without a monoid
+        SkipList<Integer> sums = new SkipList<Integer>(Monoid.<Integer>sum());
+        sums.addAll(plain);
+        sums.hashCode();
+        Random rand = new Random(41);
+        for (int round = 0; round < 2000; round++) {
+            int value = rand.nextInt(500);
+            int at = Collections.binarySearch(plain, value);
+            plain.add((at < 0) ? -at - 1 : at, value);
+            list.add(value);
+            sums.add(value);
+            if (round % 3 == 0) {
+                Integer gone = plain.remove(rand.nextInt(plain.size()));
+                list.remove(gone);
+                sums.remove(gone);
+            }
+            if (round % 50 == 49) {
+                int from = rand.nextInt(plain.size());
+                int to = Math.min(plain.size(), from + 4);
+                list.removeRange(from, to);
+                sums.removeRange(from, to);
+                plain.subList(from, to).clear();
+                list.pollLast();
+                sums.pollLast();
+                plain.remove(plain.size() - 1);
+                list.compactStep(100); // reshaping moves links, not contents
+            }
+            if (list.hashCode() != plain.hashCode() || sums.hashCode() != plain.hashCode())
+                return false;
+        }
+        list.compact();
+        list.clear();
+        return list.hashCode() == 1 && list.add(3) && list.hashCode() == Arrays.asList(3).hashCode();
+    }
+
     public Object[] toArray()
     {
         Object[] arr = new Object[size()];
-        //Starting position is set equal to the head (null)
-        Node<E> current = null;
-        //loop created that iterates through the values of the list
-        for (int i = 0; i < size(); i++)
+        // one pass along level 0 straight into the array
+        int i = 0;
+        for (Node<E> current = heads.get(0); current != null; current = current.next(0))
         {
-            //current set to position of head at index, which changes after for loop completes
-            current = heads.get(i);
-            arr[i] = current;
+            arr[i++] = current.value();
         }
         return arr;
     }
@@ -1123,50 +2798,97 @@ public class SkipList<E> implements List<E>
         return list1.equals(list2);
     }
 
+    @SuppressWarnings("unchecked") // the values are copied into an array of the caller's type
     public <T> T[] toArray(T[] a)
     {
+        if (a.length < size()) // too small, so make one of the same type that fits
+        {
+            a = (T[]) Array.newInstance(a.getClass().getComponentType(), size());
+        }
+        int i = 0;
+        for (Node<E> current = heads.get(0); current != null; current = current.next(0))
+        {
+            a[i++] = (T) current.value();
+        }
+        if (a.length > size()) // marks the end, as the List contract asks
+        {
+            a[size()] = null;
+        }
         return a;
     }
 
-    // won't compile
-    /*
-    public <T> T[] toArray(T[] a)
+    public static boolean testToArray()
     {
-        @SuppressWarnings("unchecked") // So it won't complain about Unchecked/Unsafe
-        Node<E> pointer = heads.get(0); // start at the head
-        int index = 0; // the current index of the array is 0
-        if (this.size() > a.length) // makes a new ArrayList if the one passed is too big
-       	{
-        	T[] arr = (T[]) new Object[this.size()];
-
-        	for (int i = 0; i < index; i++) // iterates through the SkipList and stores the nodes into the array
-        	{
-        		arr[i] = pointer.value(); // stores the value of the pointer into the ArrayList
-       			pointer = pointer.next(i); // moves pointer to the next node
-    			// after storing the value it moves the pointer to the node after it and then it would store that value and continue iterating through the loop
-       		}
-        }
-        else if (this.size() <= a.length)
-       	{
-        	T[] arr = (T[]) a[this.size()];
-        	return arr;
-       	}
-        return a;
+        SkipList<Integer> list = new SkipList<Integer>();
+        list.add(18);
+        list.add(6);
+        list.add(12);
+
+        Object[] plain = list.toArray();
+        Integer[] exact = list.toArray(new Integer[0]);
+        Integer[] roomy = list.toArray(new Integer[5]);
+        return Arrays.equals(plain, new Object[] {6, 12, 18})
+            && Arrays.equals(exact, new Integer[] {6, 12, 18})
+            && roomy.length == 5 && roomy[2] == 18 && roomy[3] == null;
     }
 
-    public boolean testToArrayT()
+    // visits every element in order without creating an iterator
+    public void forEach(java.util.function.Consumer<? super E> action)
     {
-        @SuppressWarnings("unchecked") // So it won't complain about Unchecked/Unsafe
-        List<Integer> testList = new LinkedList<Integer>();
-        int arr[] = new int[30];
-        for (int i = 0; i <= arr.length; i++) // iterates testList.add to add to the SkipList for the length of the array
-    	{
-    		testList.add(i);
-    	}
+        for (Node<E> current = heads.get(0); current != null; current = current.next(0))
+        {
+            action.accept(current.value());
+        }
+    }
+
+    // moves every element into c in order and leaves this list empty; returns how many moved
+    public int drainTo(Collection<? super E> c)
+    {
+        int moved = size();
+        for (Node<E> current = heads.get(0); current != null; current = current.next(0))
+        {
+            c.add(current.value());
+        }
+        clear();
+        return moved;
+    }
+
+    // the elements as primitive longs, for lists of numbers
+    public long[] toLongArray()
+    {
+        long[] arr = new long[size()];
+        int i = 0;
+        for (Node<E> current = heads.get(0); current != null; current = current.next(0))
+        {
+            arr[i++] = ((Number) current.value()).longValue();
+        }
+        return arr;
+    }
+
+    public static boolean testForEachAndDrain()
+    {
+        SkipList<Integer> list = new SkipList<Integer>();
+        list.add(3);
+        list.add(1);
+        list.add(2);
 
-    	testList.toArray(); // passes testList through the Array arr
-    	return true;
-    } */
+        final int[] sum = new int[1];
+        // an anonymous class rather than a lambda, so superTest does not pick up a synthetic lambda$test method
+        list.forEach(new java.util.function.Consumer<Integer>() {
+            public void accept(Integer value) {
+                sum[0] += value;
+            }
+        });
+        long[] longs = list.toLongArray();
+
+        List<Integer> out = new ArrayList<Integer>();
+        int moved = list.drainTo(out);
+        return sum[0] == 6
+            && Arrays.equals(longs, new long[] {1, 2, 3})
+            && moved == 3
+            && out.equals(Arrays.asList(1, 2, 3))
+            && list.isEmpty();
+    }
 
     //-----------------------------------------------------------------------------------------------
 
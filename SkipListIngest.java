@@ -0,0 +1,334 @@
+/** Batches concurrent inserts and merges each batch into a ConcurrentSkipList in one sorted pass */
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class SkipListIngest<E> implements AutoCloseable {
+    private static final int DEFAULT_BATCH_SIZE = 1024;
+
+    // an element waiting to go in, with the future to complete once it is visible (may be null)
+    private static final class Pending<E> {
+        private final E value;
+        private final CompletableFuture<Void> visible;
+
+        Pending(E value, CompletableFuture<Void> visible) {
+            this.value = value;
+            this.visible = visible;
+        }
+    }
+
+    private final ConcurrentSkipList<E> target;
+    private final int batchSize;
+    private final ConcurrentLinkedQueue<Pending<E>> queue = new ConcurrentLinkedQueue<Pending<E>>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ReentrantLock flushLock = new ReentrantLock(); // one thread merges at a time
+    private ScheduledExecutorService timer; // optional periodic flush
+
+    private long batches;  // merged batches, only written under flushLock
+    private long merged;   // merged elements, only written under flushLock
+    private long rejected; // elements the list refused, only written under flushLock
+
+    public SkipListIngest(ConcurrentSkipList<E> target) {
+        this(target, DEFAULT_BATCH_SIZE);
+    }
+
+    public SkipListIngest(ConcurrentSkipList<E> target, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be at least 1");
+        }
+        this.target = target;
+        this.batchSize = batchSize;
+    }
+
+    // also flush whatever is queued every period, so slow trickles still become visible
+    public synchronized void flushEvery(long period, TimeUnit unit) {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "skiplist-ingest-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::flush, period, period, unit);
+    }
+
+    /* queues e without waiting; it shows up in the list with the next flush.
+     * If the list refuses it then, it is counted in elementsRejected. */
+    public void offer(E e) {
+        enqueue(new Pending<E>(e, null));
+    }
+
+    // queues e; the future completes once e is visible in the list, or with what the list threw
+    public CompletableFuture<Void> submit(E e) {
+        CompletableFuture<Void> visible = new CompletableFuture<Void>();
+        enqueue(new Pending<E>(e, visible));
+        return visible;
+    }
+
+    private void enqueue(Pending<E> pending) {
+        // caught here it is the caller's own exception, later it would be a stranger's batch
+        if (pending.value == null) {
+            throw new NullPointerException("a skip list cannot hold null");
+        }
+        if (!(pending.value instanceof Comparable)) {
+            throw new ClassCastException(pending.value.getClass().getName() + " is not Comparable");
+        }
+        queue.add(pending);
+        // whoever fills a batch merges one, unless someone else already is. Only
+        // one, so a producer gets back to its own work however fast the others
+        // keep the queue filled; draining it all is for flush and the timer.
+        if (queued.incrementAndGet() >= batchSize && flushLock.tryLock()) {
+            try {
+                mergeBatch(batchSize);
+            } finally {
+                flushLock.unlock();
+            }
+        }
+    }
+
+    // merges everything queued so far; returns once it is all visible
+    public void flush() {
+        flushLock.lock();
+        try {
+            drain();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // caller holds flushLock
+    private void drain() {
+        while (mergeBatch(batchSize * 4)) {
+            // until the queue is empty
+        }
+    }
+
+    /* merges up to max queued elements; false when there were none. An
+     * element the list refuses fails on its own, and never with an exception
+     * out of here: this runs on whichever producer filled the batch. Caller
+     * holds flushLock. */
+    private boolean mergeBatch(int max) {
+        ArrayList<Pending<E>> batch = new ArrayList<Pending<E>>(Math.min(queued.get(), max) + 1);
+        Pending<E> pending;
+        while (batch.size() < max && (pending = queue.poll()) != null) {
+            batch.add(pending);
+        }
+        if (batch.isEmpty()) {
+            return false;
+        }
+        queued.addAndGet(-batch.size());
+
+        // sorted, so each add starts its search from the finger the previous one left. A
+        // copy gets sorted, as an element that does not compare can stop the sort halfway
+        ArrayList<Pending<E>> sorted = new ArrayList<Pending<E>>(batch);
+        try {
+            sorted.sort((a, b) -> {
+                @SuppressWarnings("unchecked")
+                Comparable<E> ca = (Comparable<E>) a.value;
+                return ca.compareTo(b.value);
+            });
+            batch = sorted;
+        } catch (RuntimeException e) {
+            // arrival order then; the list tells which of them it takes
+        }
+        ArrayList<E> values = new ArrayList<E>(batch.size());
+        for (Pending<E> p : batch) {
+            values.add(p.value);
+        }
+        RuntimeException[] failures = target.addEach(values); // one write lock for the whole batch
+
+        batches++;
+        for (int i = 0; i < failures.length; i++) {
+            Pending<E> p = batch.get(i);
+            if (failures[i] == null) {
+                merged++;
+                if (p.visible != null) {
+                    p.visible.complete(null);
+                }
+            } else {
+                rejected++;
+                if (p.visible != null) {
+                    p.visible.completeExceptionally(failures[i]);
+                }
+            }
+        }
+        return true;
+    }
+
+    public int pending() {
+        return queued.get();
+    }
+
+    public long batchesMerged() {
+        flushLock.lock();
+        try {
+            return batches;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public long elementsMerged() {
+        flushLock.lock();
+        try {
+            return merged;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // queued elements the list would not take, such as ones that do not compare with the rest
+    public long elementsRejected() {
+        flushLock.lock();
+        try {
+            return rejected;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // stops the periodic flush and merges what is left
+    public synchronized void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        flush();
+    }
+
+    // Tests
+
+    public static boolean testConcurrentProducers() {
+        final ConcurrentSkipList<Integer> list = new ConcurrentSkipList<Integer>();
+        final SkipListIngest<Integer> ingest = new SkipListIngest<Integer>(list, 64);
+        final int producers = 4;
+        final int perProducer = 5000;
+        Thread[] threads = new Thread[producers];
+        for (int t = 0; t < producers; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    ingest.offer(i * producers + id);
+                }
+            });
+            threads[t].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            return false;
+        }
+        ingest.close();
+
+        if (list.size() != producers * perProducer || ingest.pending() != 0) {
+            return false;
+        }
+        int expected = 0;
+        for (int value : list) {
+            if (value != expected++) {
+                return false;
+            }
+        }
+        // batching means far fewer write locks than elements
+        return list.writes() == ingest.batchesMerged() && ingest.batchesMerged() < list.size() / 10;
+    }
+
+    public static boolean testSubmitCompletesWhenVisible() {
+        ConcurrentSkipList<Integer> list = new ConcurrentSkipList<Integer>();
+        SkipListIngest<Integer> ingest = new SkipListIngest<Integer>(list, 1000);
+        ingest.flushEvery(5, TimeUnit.MILLISECONDS);
+        try {
+            CompletableFuture<Void> visible = ingest.submit(42);
+            visible.get(5, TimeUnit.SECONDS);
+            return list.contains(42);
+        } catch (Exception e) {
+            return false;
+        } finally {
+            ingest.close();
+        }
+    }
+
+    public static boolean testBadElementCostsOnlyItself() throws Exception {
+        final ConcurrentSkipList<Object> list = new ConcurrentSkipList<Object>();
+        list.add(-1); // so a String is the one that does not compare
+        final SkipListIngest<Object> ingest = new SkipListIngest<Object>(list, 64);
+        final int producers = 4;
+        final int perProducer = 2000;
+        final boolean[] failed = new boolean[1];
+        final List<CompletableFuture<Void>> bad = new ArrayList<CompletableFuture<Void>>();
+        Thread[] threads = new Thread[producers];
+        for (int t = 0; t < producers; t++) {
+            final int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    try {
+                        ingest.offer(i * producers + id);
+                        if (id == 0 && i % 500 == 0) {
+                            synchronized (bad) {
+                                bad.add(ingest.submit("not an Integer"));
+                            }
+                            try {
+                                ingest.offer(new Object());
+                                failed[0] = true;
+                            } catch (ClassCastException expected) { // refused up front, to this caller only
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        failed[0] = true; // someone else's element came back at this producer
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        ingest.close();
+
+        for (CompletableFuture<Void> future : bad) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                return false;
+            } catch (ExecutionException expected) {
+            }
+        }
+        // every producer's elements made it, whichever batches the strings sank into
+        return !failed[0]
+            && list.size() == 1 + producers * perProducer
+            && ingest.elementsRejected() == bad.size()
+            && ingest.elementsMerged() == producers * perProducer;
+    }
+
+    public static boolean testTimerSurvivesRefusedElement() throws Exception {
+        ConcurrentSkipList<Object> list = new ConcurrentSkipList<Object>();
+        list.add(1);
+        SkipListIngest<Object> ingest = new SkipListIngest<Object>(list, 1000);
+        try {
+            CompletableFuture<Void> bad = ingest.submit("a"); // a String next to Integers
+            CompletableFuture<Void> good = ingest.submit(2); // same batch
+            ingest.flushEvery(5, TimeUnit.MILLISECONDS);
+            try {
+                bad.get(5, TimeUnit.SECONDS);
+                return false;
+            } catch (ExecutionException expected) {
+            }
+            good.get(5, TimeUnit.SECONDS);
+            // the schedule is still running and picks up the next batch
+            ingest.submit(7).get(5, TimeUnit.SECONDS);
+            return list.contains(2) && list.contains(7) && ingest.elementsRejected() == 1;
+        } finally {
+            ingest.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("concurrent producers: " + Boolean.toString(testConcurrentProducers()));
+        System.out.println("submit completes when visible: " + Boolean.toString(testSubmitCompletesWhenVisible()));
+        System.out.println("bad element costs only itself: " + Boolean.toString(testBadElementCostsOnlyItself()));
+        System.out.println("timer survives refused element: " + Boolean.toString(testTimerSurvivesRefusedElement()));
+    }
+}
@@ -0,0 +1,202 @@
+/** Operations over many SkipLists at once, without copying them into one */
+import java.util.*;
+
+public class SkipLists {
+    private SkipLists() {
+    }
+
+    // the next element of one list, ordered by that element
+    private static final class Cursor<E> implements Comparable<Cursor<E>> {
+        private final Iterator<? extends E> it;
+        private final int source; // breaks ties, so equal elements come out in list order
+        private E head;
+
+        Cursor(Iterator<? extends E> it, int source) {
+            this.it = it;
+            this.source = source;
+            this.head = it.next();
+        }
+
+        @SuppressWarnings("unchecked")
+        public int compareTo(Cursor<E> other) {
+            int c = ((Comparable<E>) head).compareTo(other.head);
+            return (c != 0) ? c : Integer.compare(source, other.source);
+        }
+    }
+
+    /* every element of every list in sorted order. A heap holds the next
+     * element of each list, so each step costs O(log k) for k lists. */
+    public static <E> Iterator<E> merge(final Collection<? extends SkipList<? extends E>> lists) {
+        final PriorityQueue<Cursor<E>> heap = new PriorityQueue<Cursor<E>>(Math.max(1, lists.size()));
+        int source = 0;
+        for (SkipList<? extends E> list : lists) {
+            Iterator<? extends E> it = list.iterator();
+            if (it.hasNext()) {
+                heap.add(new Cursor<E>(it, source));
+            }
+            source++;
+        }
+        return new Iterator<E>() {
+            public boolean hasNext() {
+                return !heap.isEmpty();
+            }
+
+            public E next() {
+                Cursor<E> cursor = heap.poll();
+                if (cursor == null) {
+                    throw new NoSuchElementException();
+                }
+                E value = cursor.head;
+                if (cursor.it.hasNext()) {
+                    cursor.head = cursor.it.next();
+                    heap.add(cursor);
+                }
+                return value;
+            }
+        };
+    }
+
+    public static long size(Collection<? extends SkipList<?>> lists) {
+        long total = 0;
+        for (SkipList<?> list : lists) {
+            total += list.size();
+        }
+        return total;
+    }
+
+    // how many elements across all the lists are less than e
+    public static <E> long rank(Collection<? extends SkipList<E>> lists, E e) {
+        long rank = 0;
+        for (SkipList<E> list : lists) {
+            rank += list.equalRange(e).first;
+        }
+        return rank;
+    }
+
+    /* the element at index (int) (total * quantile) of all the lists merged,
+     * found without merging anything.
+     *
+     * Each list keeps a window of the indexes that can still hold the answer.
+     * Every round the pivot is the weighted median of the windows' middle
+     * elements, and equalRange says how many elements in each whole list fall
+     * below and up to it. Those sums either pin the answer on the pivot or let
+     * every window drop its part on the wrong side; the weighted median makes
+     * that at least a quarter of what is left. That is O(log n) rounds of
+     * O(k log n) each, for k lists of up to n elements. */
+    public static <E> E getQuantile(List<? extends SkipList<E>> lists, double quantile) {
+        if (quantile >= 1 || quantile < 0) {
+            throw new IndexOutOfBoundsException("Quantile is out of range");
+        }
+        long total = size(lists);
+        if (total == 0) {
+            throw new NoSuchElementException("all the lists are empty");
+        }
+        long target = (long) (total * quantile);
+
+        int k = lists.size();
+        int[] lo = new int[k];
+        int[] hi = new int[k];
+        for (int i = 0; i < k; i++) {
+            hi[i] = lists.get(i).size();
+        }
+        ArrayList<E> middles = new ArrayList<E>(k);
+        ArrayList<Integer> weights = new ArrayList<Integer>(k);
+        while (true) {
+            middles.clear();
+            weights.clear();
+            for (int i = 0; i < k; i++) {
+                if (lo[i] < hi[i]) {
+                    middles.add(lists.get(i).get((lo[i] + hi[i]) >>> 1));
+                    weights.add(hi[i] - lo[i]);
+                }
+            }
+            E pivot = weightedMedian(middles, weights);
+
+            long below = 0;
+            long upTo = 0;
+            SkipList.EqualRange[] ranges = new SkipList.EqualRange[k];
+            for (int i = 0; i < k; i++) {
+                ranges[i] = lists.get(i).equalRange(pivot);
+                below += ranges[i].first;
+                upTo += ranges[i].first + ranges[i].count;
+            }
+            if (target < below) {
+                for (int i = 0; i < k; i++) {
+                    hi[i] = Math.min(hi[i], ranges[i].first);
+                }
+            } else if (target < upTo) {
+                return pivot;
+            } else {
+                for (int i = 0; i < k; i++) {
+                    lo[i] = Math.max(lo[i], ranges[i].first + ranges[i].count);
+                }
+            }
+        }
+    }
+
+    // the element where the weights, taken in sorted order, pass half their total
+    @SuppressWarnings("unchecked")
+    private static <E> E weightedMedian(final List<E> values, List<Integer> weights) {
+        Integer[] order = new Integer[values.size()];
+        long total = 0;
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            total += weights.get(i);
+        }
+        Arrays.sort(order, (a, b) -> ((Comparable<E>) values.get(a)).compareTo(values.get(b)));
+        long seen = 0;
+        for (int i : order) {
+            seen += weights.get(i);
+            if (2 * seen >= total) {
+                return values.get(i);
+            }
+        }
+        return values.get(order[order.length - 1]);
+    }
+
+    // Tests
+
+    private static List<SkipList<Integer>> randomLists(Random rand, int count, List<Integer> all) {
+        List<SkipList<Integer>> lists = new ArrayList<SkipList<Integer>>();
+        for (int i = 0; i < count; i++) {
+            SkipList<Integer> list = new SkipList<Integer>();
+            int size = (i % 10 == 0) ? 0 : rand.nextInt(2000); // a few empty ones
+            int offset = rand.nextInt(50000);
+            for (int j = 0; j < size; j++) {
+                int value = offset + rand.nextInt(20000) / 10 * 10; // overlapping ranges, many repeats
+                list.add(value);
+                all.add(value);
+            }
+            lists.add(list);
+        }
+        Collections.sort(all);
+        return lists;
+    }
+
+    public static boolean testMerge() {
+        List<Integer> all = new ArrayList<Integer>();
+        List<SkipList<Integer>> lists = randomLists(new Random(37), 50, all);
+        List<Integer> merged = new ArrayList<Integer>();
+        for (Iterator<Integer> it = merge(lists); it.hasNext(); ) {
+            merged.add(it.next());
+        }
+        return merged.equals(all) && !merge(new ArrayList<SkipList<Integer>>()).hasNext();
+    }
+
+    public static boolean testMergedQuantile() {
+        List<Integer> all = new ArrayList<Integer>();
+        List<SkipList<Integer>> lists = randomLists(new Random(41), 200, all);
+        for (double q : new double[] {0, 0.001, 0.25, 0.5, 0.9, 0.99, 0.999, 0.99999}) {
+            int expected = all.get((int) (all.size() * q));
+            if (getQuantile(lists, q) != expected)
+                return false;
+        }
+        int probe = all.get(all.size() / 3);
+        return rank(lists, probe) == all.indexOf(probe) && size(lists) == all.size();
+    }
+
+    public static void main(String[] args) {
+        System.out.println("merge: " + Boolean.toString(testMerge()));
+        System.out.println("merged quantile: " + Boolean.toString(testMergedQuantile()));
+    }
+}
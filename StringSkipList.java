@@ -0,0 +1,449 @@
+/** Skip list of Strings that front-codes keys on level 0 and compares from the first differing char */
+import java.util.*;
+
+public class StringSkipList extends AbstractList<String> {
+    private static final double P = 0.25; // fewer tall nodes, so longer front-coded runs between whole keys
+    private static final int MAX_LEVELS = 16;
+
+    /* A key is stored as how many leading chars it shares with the key before
+     * it on level 0, plus the rest. Nodes that reach level 1, and the first
+     * node, keep their whole key (shared is 0), so the upper levels compare
+     * plain keys and every level 0 walk starts from a key it already knows.
+     * Other than that 0, shared is always the exact common prefix length.
+     *
+     * Every link also counts the level 0 steps it jumps, the end of the list
+     * sitting at index count, so get descends to the whole key nearest its
+     * index in O(log n) and only decodes the few nodes after it. */
+    private static final class SNode {
+        private int shared;
+        private String suffix;
+        private final SNode[] next;
+        private final int[] span;
+
+        SNode(int height) {
+            next = new SNode[height];
+            span = new int[height];
+        }
+
+        int length() {
+            return shared + suffix.length();
+        }
+
+        char charAt(int i) {
+            return suffix.charAt(i - shared);
+        }
+    }
+
+    private final SNode head = new SNode(MAX_LEVELS); // sentinel, holds no key
+    private final SNode[] path = new SNode[MAX_LEVELS]; // reused search path, one node per level
+    private final int[] pathRanks = new int[MAX_LEVELS]; // index of each path node, -1 for the head
+    private char[] predKey = new char[32]; // whole key of path[0] after a descend
+    private int predLength;
+    private int predLcp; // chars the searched key shares with path[0]'s key
+    private int succLcp; // and with the node after it, when the walk stopped at one
+    private int count;   // list size
+
+    private static final LevelGenerator LEVELS = LevelGenerator.geometric(P, MAX_LEVELS);
+
+    public StringSkipList() {
+        Arrays.fill(head.span, 1); // every level of an empty list runs straight to the end
+    }
+
+    private static int randomHeight() {
+        return LEVELS.nextLevel();
+    }
+
+    // how far key and node's key agree, given that the first from chars do (from >= node.shared)
+    private static int matchFrom(String key, int from, SNode node) {
+        int end = Math.min(key.length(), node.length());
+        int i = from;
+        while (i < end && key.charAt(i) == node.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    // compares key with node's key when they agree on exactly the first lcp chars
+    private static int compareAt(String key, int lcp, SNode node) {
+        if (lcp == key.length()) {
+            return (lcp == node.length()) ? 0 : -1;
+        }
+        if (lcp == node.length()) {
+            return 1;
+        }
+        return key.charAt(lcp) - node.charAt(lcp);
+    }
+
+    // decodes node into predKey, which holds the key before it
+    private void advanceKey(SNode node) {
+        if (predKey.length < node.length()) {
+            predKey = Arrays.copyOf(predKey, Math.max(node.length(), predKey.length * 2));
+        }
+        node.suffix.getChars(0, node.suffix.length(), predKey, node.shared);
+        predLength = node.length();
+    }
+
+    /* fills path with the last node before key (or not after it when
+     * inclusive) on every level and returns the one on level 0.
+     *
+     * Every key between two nodes shares with the searched key at least the
+     * smaller of what those two nodes share with it, so each comparison starts
+     * there. On level 0 the stored shared lengths settle most steps without
+     * looking at a single char: a node sharing more with its predecessor than
+     * the key does sorts the same way as that predecessor, one sharing less
+     * sorts after the key. */
+    private SNode descend(String key, boolean inclusive) {
+        SNode finger = head;
+        int rank = -1;
+        int leftLcp = 0;  // with finger's key
+        int rightLcp = 0; // with the node the walk above stopped at
+        for (int lvl = MAX_LEVELS - 1; lvl >= 1; lvl--) {
+            SNode next = finger.next[lvl];
+            while (next != null) {
+                int lcp = matchFrom(key, Math.min(leftLcp, rightLcp), next);
+                int c = compareAt(key, lcp, next);
+                if (inclusive ? c < 0 : c <= 0) {
+                    rightLcp = lcp;
+                    break;
+                }
+                rank += finger.span[lvl];
+                finger = next;
+                leftLcp = lcp;
+                next = finger.next[lvl];
+            }
+            path[lvl] = finger;
+            pathRanks[lvl] = rank;
+        }
+
+        predLength = 0;
+        if (finger != head) {
+            advanceKey(finger);
+        }
+        int matched = leftLcp;
+        SNode next = finger.next[0];
+        while (next != null) {
+            int lcp;
+            int c;
+            if (next.shared == 0) { // a whole key
+                lcp = matchFrom(key, Math.min(matched, rightLcp), next);
+                c = compareAt(key, lcp, next);
+            } else if (next.shared > matched) {
+                // next agrees with its predecessor past where the key left it
+                lcp = matched;
+                c = (matched == key.length()) ? -1 : 1;
+            } else if (next.shared < matched) {
+                // next leaves its predecessor, and so the key, upwards at shared
+                lcp = next.shared;
+                c = -1;
+            } else {
+                lcp = matchFrom(key, matched, next);
+                c = compareAt(key, lcp, next);
+            }
+            if (inclusive ? c < 0 : c <= 0) {
+                succLcp = lcp;
+                break;
+            }
+            advanceKey(next);
+            matched = lcp;
+            rank++;
+            finger = next;
+            next = finger.next[0];
+        }
+        path[0] = finger;
+        pathRanks[0] = rank;
+        predLcp = matched;
+        return finger;
+    }
+
+    public boolean add(String e) {
+        SNode pred = descend(e, true);
+        SNode succ = pred.next[0];
+
+        int height = randomHeight();
+        SNode node = new SNode(height);
+        if (height > 1 || pred == head) {
+            node.shared = 0;
+            node.suffix = e;
+        } else {
+            node.shared = predLcp;
+            node.suffix = e.substring(predLcp);
+        }
+        // succ was coded against pred, recode it against e
+        if (succ != null && succ.shared > 0) {
+            String fromPred = (succLcp < succ.shared) ? new String(predKey, succLcp, succ.shared - succLcp) : "";
+            succ.suffix = fromPred + succ.suffix.substring(Math.max(0, succLcp - succ.shared));
+            succ.shared = succLcp;
+        }
+
+        int rank = pathRanks[0] + 1; // index the new node ends up at
+        for (int lvl = 0; lvl < height; lvl++) {
+            // the old link is split in two, and everything after it moved up by one
+            node.span[lvl] = path[lvl].span[lvl] + pathRanks[lvl] + 1 - rank;
+            path[lvl].span[lvl] = rank - pathRanks[lvl];
+            node.next[lvl] = path[lvl].next[lvl];
+            path[lvl].next[lvl] = node;
+        }
+        for (int lvl = height; lvl < MAX_LEVELS; lvl++) {
+            path[lvl].span[lvl]++;
+        }
+        count++;
+        return true;
+    }
+
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String key = (String) o;
+        SNode node = descend(key, false).next[0];
+        return node != null && succLcp == key.length() && node.length() == key.length();
+    }
+
+    public boolean remove(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String key = (String) o;
+        SNode pred = descend(key, false);
+        SNode node = pred.next[0];
+        if (node == null || succLcp != key.length() || node.length() != key.length()) {
+            return false;
+        }
+
+        // the node after it gets coded against pred; what pred and it share is the smaller overlap
+        SNode after = node.next[0];
+        if (after != null && after.shared > 0) {
+            int shared = (pred == head) ? 0 : Math.min(predLcp, after.shared);
+            after.suffix = key.substring(shared, after.shared) + after.suffix;
+            after.shared = shared;
+        }
+        for (int lvl = 0; lvl < node.next.length; lvl++) {
+            path[lvl].span[lvl] += node.span[lvl] - 1;
+            path[lvl].next[lvl] = node.next[lvl];
+        }
+        for (int lvl = node.next.length; lvl < MAX_LEVELS; lvl++) {
+            path[lvl].span[lvl]--;
+        }
+        count--;
+        return true;
+    }
+
+    /* the keys starting with prefix, in order. Finding the first one is a
+     * single O(log n) descent; the scan then stops at the first key past it. */
+    public Iterator<String> prefixScan(String prefix) {
+        SNode pred = descend(prefix, false);
+        return new Scan(pred.next[0], Arrays.copyOf(predKey, Math.max(predLength, 16)), prefix);
+    }
+
+    // decodes keys one after another from a copy of the key before the first one
+    private static final class Scan implements Iterator<String> {
+        private SNode node;
+        private char[] key;
+        private final String prefix; // stop at the first key without it, null to run to the end
+        private String upcoming;
+
+        Scan(SNode first, char[] keyBefore, String prefix) {
+            this.node = first;
+            this.key = keyBefore;
+            this.prefix = prefix;
+            decode();
+        }
+
+        private void decode() {
+            upcoming = null;
+            if (node == null) {
+                return;
+            }
+            if (key.length < node.length()) {
+                key = Arrays.copyOf(key, Math.max(node.length(), key.length * 2));
+            }
+            node.suffix.getChars(0, node.suffix.length(), key, node.shared);
+            String value = new String(key, 0, node.length());
+            if (prefix == null || value.startsWith(prefix)) {
+                upcoming = value;
+            }
+        }
+
+        public boolean hasNext() {
+            return upcoming != null;
+        }
+
+        public String next() {
+            if (upcoming == null) {
+                throw new NoSuchElementException();
+            }
+            String value = upcoming;
+            node = node.next[0];
+            decode();
+            return value;
+        }
+    }
+
+    public Iterator<String> iterator() {
+        return new Scan(head.next[0], new char[32], null);
+    }
+
+    public String get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("chosen index is out of bounds");
+        }
+        // down the spans to the last node reaching level 1 at or before index, a whole key
+        SNode finger = head;
+        int rank = -1;
+        for (int lvl = MAX_LEVELS - 1; lvl >= 1; lvl--) {
+            while (finger.next[lvl] != null && rank + finger.span[lvl] <= index) {
+                rank += finger.span[lvl];
+                finger = finger.next[lvl];
+            }
+        }
+        // then decode along level 0, about 1 / P nodes
+        Iterator<String> it = (finger == head)
+            ? new Scan(head.next[0], new char[32], null)
+            : new Scan(finger, new char[finger.length()], null);
+        for (int i = Math.max(rank, 0); i < index; i++) {
+            it.next();
+        }
+        return it.next();
+    }
+
+    public String getQuantile(double quantile) {
+        if (quantile >= 1 || quantile < 0) {
+            throw new IndexOutOfBoundsException("Quantile is out of range");
+        }
+        return get((int) (count * quantile));
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void clear() {
+        Arrays.fill(head.next, null);
+        Arrays.fill(head.span, 1);
+        count = 0;
+    }
+
+    // chars the nodes actually hold, against the sum of the key lengths without front coding
+    public long storedChars() {
+        long chars = 0;
+        for (SNode node = head.next[0]; node != null; node = node.next[0]) {
+            chars += node.suffix.length();
+        }
+        return chars;
+    }
+
+    // checks the coding: whole keys where they are required, exact shared lengths elsewhere
+    private boolean checkCoding() {
+        String prev = null;
+        Iterator<String> it = iterator();
+        for (SNode node = head.next[0]; node != null; node = node.next[0]) {
+            String key = it.next();
+            if ((node.next.length > 1 || prev == null) && node.shared != 0) {
+                return false;
+            }
+            if (prev != null && prev.compareTo(key) > 0) {
+                return false;
+            }
+            if (node.shared > 0) {
+                int lcp = 0;
+                while (lcp < Math.min(prev.length(), key.length()) && prev.charAt(lcp) == key.charAt(lcp)) {
+                    lcp++;
+                }
+                if (lcp != node.shared) {
+                    return false;
+                }
+            }
+            prev = key;
+        }
+        return true;
+    }
+
+    // Tests
+
+    private static String path(Random rand) {
+        return "/tenants/tenant-" + rand.nextInt(8) + "/users/" + rand.nextInt(50) + "/sessions/" + rand.nextInt(20);
+    }
+
+    public static boolean testMatchesSortedList() {
+        StringSkipList list = new StringSkipList();
+        List<String> expected = new ArrayList<String>();
+        Random rand = new Random(23);
+
+        for (int i = 0; i < 4000; i++) {
+            String key = path(rand);
+            list.add(key);
+            expected.add(key);
+        }
+        for (int i = 0; i < 3000; i++) {
+            String key = path(rand);
+            if (list.remove(key) != expected.remove(key)) {
+                return false;
+            }
+        }
+        // prefixes of stored keys and keys extending them must not be mistaken for them
+        list.add("/tenants/tenant-1");
+        expected.add("/tenants/tenant-1");
+        Collections.sort(expected);
+        for (int i = 0; i < expected.size(); i++) {
+            if (!list.get(i).equals(expected.get(i))) {
+                return false;
+            }
+        }
+        return list.checkCoding()
+            && list.equals(expected)
+            && list.getQuantile(0.5).equals(expected.get(expected.size() / 2))
+            && list.contains(expected.get(expected.size() / 2))
+            && list.contains("/tenants/tenant-1")
+            && !list.contains("/tenants/tenant-")
+            && !list.contains("/tenants/tenant-1/")
+            && !list.contains(42)
+            && list.get(expected.size() - 1).equals(expected.get(expected.size() - 1));
+    }
+
+    public static boolean testPrefixScan() {
+        StringSkipList list = new StringSkipList();
+        List<String> all = new ArrayList<String>();
+        Random rand = new Random(29);
+        for (int i = 0; i < 3000; i++) {
+            String key = path(rand);
+            list.add(key);
+            all.add(key);
+        }
+        Collections.sort(all);
+
+        for (String prefix : new String[] {"/tenants/tenant-3/", "/tenants/tenant-5/users/1", "/tenants/tenant-9", "", "/x"}) {
+            List<String> scanned = new ArrayList<String>();
+            for (Iterator<String> it = list.prefixScan(prefix); it.hasNext(); ) {
+                scanned.add(it.next());
+            }
+            List<String> expected = new ArrayList<String>();
+            for (String key : all) {
+                if (key.startsWith(prefix)) {
+                    expected.add(key);
+                }
+            }
+            if (!scanned.equals(expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean testFrontCoding() {
+        StringSkipList list = new StringSkipList();
+        long fullChars = 0;
+        for (int i = 0; i < 10000; i++) {
+            String key = "/tenants/acme-corporation/buckets/logs/2024/" + i;
+            list.add(key);
+            fullChars += key.length();
+        }
+        // most nodes only keep the few chars after the shared path
+        return list.checkCoding() && list.storedChars() < fullChars / 2;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("matches sorted list: " + Boolean.toString(testMatchesSortedList()));
+        System.out.println("prefix scan: " + Boolean.toString(testPrefixScan()));
+        System.out.println("front coding: " + Boolean.toString(testFrontCoding()));
+    }
+}
@@ -0,0 +1,128 @@
+/** Writes synthetic operation traces for WorkloadReplay */
+import java.io.*;
+import java.util.*;
+
+public class TraceGenerator {
+    /* ZIPFIAN: a fixed key space where a few hot keys get most of the traffic.
+     * SEQUENTIAL: ever increasing keys, like time series ingest.
+     * SLIDING_WINDOW: new keys go in at the top while the oldest leave at the
+     * bottom, like a retention window over timestamps. */
+    public enum Shape { ZIPFIAN, SEQUENTIAL, SLIDING_WINDOW }
+
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    // draws ranks 0..n-1 with probability proportional to 1 / (rank + 1)^exponent
+    private static final class Zipf {
+        private final double[] cumulative;
+        private final Random rand;
+
+        Zipf(int n, double exponent, Random rand) {
+            cumulative = new double[n];
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                total += 1 / Math.pow(i + 1, exponent);
+                cumulative[i] = total;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= total;
+            }
+            this.rand = rand;
+        }
+
+        int next() {
+            int i = Arrays.binarySearch(cumulative, rand.nextDouble());
+            return Math.min(cumulative.length - 1, (i < 0) ? -i - 1 : i);
+        }
+    }
+
+    // spreads ranks over the key range so the hot keys are not all at one end
+    private static long scatter(int rank, int keySpace) {
+        return Math.floorMod(rank * 0x9E3779B97F4A7C15L, (long) keySpace * 16);
+    }
+
+    /* writes ops timed operations, preceded by untimed load lines that fill
+     * the list to its steady state size (keySpace / 2 keys, or the window) */
+    public static void generate(Shape shape, int ops, int keySpace, long seed, Writer out) throws IOException {
+        Random rand = new Random(seed);
+        PrintWriter w = new PrintWriter(new BufferedWriter(out));
+        switch (shape) {
+            case ZIPFIAN: {
+                Zipf zipf = new Zipf(keySpace, ZIPF_EXPONENT, rand);
+                for (int i = 0; i < keySpace / 2; i++) {
+                    w.println("load " + scatter(rand.nextInt(keySpace), keySpace));
+                }
+                for (int i = 0; i < ops; i++) {
+                    long key = scatter(zipf.next(), keySpace);
+                    int dice = rand.nextInt(1000);
+                    if (dice < 500) {
+                        w.println("contains " + key);
+                    } else if (dice < 750) {
+                        w.println("add " + key);
+                    } else if (dice < 980) {
+                        w.println("remove " + key);
+                    } else if (dice < 990) {
+                        w.println("get " + rand.nextInt(keySpace / 2 + 1));
+                    } else if (dice < 999) {
+                        w.println("quantile " + rand.nextInt(100) / 100.0);
+                    } else {
+                        w.println("iterate");
+                    }
+                }
+                break;
+            }
+            case SEQUENTIAL: {
+                long next = 0;
+                for (int i = 0; i < ops; i++) {
+                    int dice = rand.nextInt(100);
+                    if (dice < 80) {
+                        next += 1 + rand.nextInt(3);
+                        w.println("add " + next);
+                    } else if (dice < 95) {
+                        w.println("contains " + Math.max(0, next - rand.nextInt(keySpace)));
+                    } else {
+                        w.println("quantile " + rand.nextInt(100) / 100.0);
+                    }
+                }
+                break;
+            }
+            case SLIDING_WINDOW: {
+                // keySpace is the window size; each new key pushes the oldest one out
+                long newest = 0;
+                for (; newest < keySpace; newest++) {
+                    w.println("load " + newest);
+                }
+                for (int i = 0; i < ops; i++) {
+                    int dice = rand.nextInt(100);
+                    if (dice < 40) {
+                        w.println("add " + newest);
+                        w.println("remove " + (newest - keySpace));
+                        newest++;
+                        i++;
+                    } else if (dice < 90) {
+                        w.println("contains " + (newest - 1 - rand.nextInt(keySpace)));
+                    } else {
+                        w.println("quantile " + rand.nextInt(100) / 100.0);
+                    }
+                }
+                break;
+            }
+        }
+        w.flush();
+        if (w.checkError()) {
+            throw new IOException("could not write the trace");
+        }
+    }
+
+    // TraceGenerator <zipfian|sequential|sliding_window> <ops> <keySpace> <file> [seed]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.out.println("usage: TraceGenerator <zipfian|sequential|sliding_window> <ops> <keySpace> <file> [seed]");
+            return;
+        }
+        Shape shape = Shape.valueOf(args[0].toUpperCase());
+        long seed = (args.length > 4) ? Long.parseLong(args[4]) : 1;
+        try (Writer out = new FileWriter(args[3])) {
+            generate(shape, Integer.parseInt(args[1]), Integer.parseInt(args[2]), seed, out);
+        }
+    }
+}
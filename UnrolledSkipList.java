@@ -0,0 +1,445 @@
+/** Unrolled skip list: every node holds a small sorted block of elements */
+import java.util.*;
+
+public class UnrolledSkipList<E> extends AbstractList<E> {
+    private static final double P = 0.5;
+    private static final int MAX_LEVELS = 30;
+    private static final int DEFAULT_BLOCK_SIZE = 32;
+
+    private final int blockSize;  // most elements a block can hold
+    private final int minFill;    // a block this empty gets merged with the next one
+    private final Block<E> head;  // sentinel block, never holds elements
+    private final Block<E>[] path; // reused search path, one block per level
+    private final int[] ranks;     // index of the first element of each path block, 0 for the head
+    private int count;            // list size
+
+    /* a block of up to blockSize elements, sorted, linked to later blocks on
+     * every level it reaches. Upper levels only ever point at blocks. Each
+     * link also counts the elements it jumps over, from the block's first
+     * element up to the next block's, so indexes can be found from the top. */
+    private static final class Block<E> {
+        private final Object[] elements;
+        private int size;
+        private final Block<E>[] next;
+        private final int[] span; // elements from this block up to next[level], all the rest when next is null
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Block(int capacity, int height) {
+            elements = new Object[capacity];
+            next = (Block<E>[]) new Block[height];
+            span = new int[height];
+        }
+
+        int levels() {
+            return next.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        E get(int i) {
+            return (E) elements[i];
+        }
+
+        E first() {
+            return get(0);
+        }
+
+        void insert(int pos, Object e) {
+            System.arraycopy(elements, pos, elements, pos + 1, size - pos);
+            elements[pos] = e;
+            size++;
+        }
+
+        void delete(int pos) {
+            System.arraycopy(elements, pos + 1, elements, pos, size - pos - 1);
+            elements[--size] = null;
+        }
+    }
+
+    public UnrolledSkipList() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public UnrolledSkipList(int blockSize) {
+        if (blockSize < 4) {
+            throw new IllegalArgumentException("blocks need room for at least 4 elements");
+        }
+        this.blockSize = blockSize;
+        this.minFill = blockSize / 4;
+        head = new Block<E>(0, MAX_LEVELS);
+        path = (Block<E>[]) new Block[MAX_LEVELS];
+        ranks = new int[MAX_LEVELS];
+        count = 0;
+    }
+
+    // same height distribution as Node
+    private static final LevelGenerator LEVELS = LevelGenerator.geometric(P, MAX_LEVELS);
+
+    private static int randomHeight() {
+        return LEVELS.nextLevel();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> int compare(Object a, E b) {
+        return ((Comparable<E>) a).compareTo(b);
+    }
+
+    // first position in the block holding something greater than e
+    private static <E> int upperBound(Block<E> block, Object e) {
+        int lo = 0, hi = block.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(e, block.get(mid)) >= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // first position in the block holding something not less than e
+    private static <E> int lowerBound(Block<E> block, Object e) {
+        int lo = 0, hi = block.size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(e, block.get(mid)) > 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /* fills path with the last block on every level whose first element is
+     * before e (or not after it when inclusive) and returns the one on level 0 */
+    private Block<E> descend(Object e, boolean inclusive) {
+        Block<E> finger = head;
+        int rank = 0;
+        for (int lvl = MAX_LEVELS - 1; lvl >= 0; lvl--) {
+            Block<E> next = finger.next[lvl];
+            while (next != null && (inclusive ? compare(e, next.first()) >= 0 : compare(e, next.first()) > 0)) {
+                rank += finger.span[lvl];
+                finger = next;
+                next = finger.next[lvl];
+            }
+            path[lvl] = finger;
+            ranks[lvl] = rank;
+        }
+        return finger;
+    }
+
+    /* fills path with the block on every level whose link covers index, by
+     * the spans alone, and returns the block holding it */
+    private Block<E> locate(int index) {
+        Block<E> finger = head;
+        int rank = 0;
+        for (int lvl = MAX_LEVELS - 1; lvl >= 0; lvl--) {
+            while (finger.next[lvl] != null && rank + finger.span[lvl] <= index) {
+                rank += finger.span[lvl];
+                finger = finger.next[lvl];
+            }
+            path[lvl] = finger;
+            ranks[lvl] = rank;
+        }
+        return finger;
+    }
+
+    /* links a new block right after block, whose first element is at index
+     * rank, using path for the levels block does not reach. added's elements
+     * must already be counted in the links it goes under, as after a split. */
+    private void linkAfter(Block<E> block, int rank, Block<E> added, int addedRank) {
+        for (int lvl = 0; lvl < added.levels(); lvl++) {
+            Block<E> before = (lvl < block.levels()) ? block : path[lvl];
+            int beforeRank = (lvl < block.levels()) ? rank : ranks[lvl];
+            added.next[lvl] = before.next[lvl];
+            added.span[lvl] = beforeRank + before.span[lvl] - addedRank;
+            before.next[lvl] = added;
+            before.span[lvl] = addedRank - beforeRank;
+        }
+        // block now covers added on its own levels, whatever path held
+        for (int lvl = 0; lvl < block.levels(); lvl++) {
+            path[lvl] = block;
+            ranks[lvl] = rank;
+        }
+    }
+
+    // puts e at pos in block, path covering block on the levels it does not reach
+    private void insertAt(Block<E> block, int pos, Object e) {
+        block.insert(pos, e);
+        for (int lvl = 0; lvl < MAX_LEVELS; lvl++) {
+            ((lvl < block.levels()) ? block : path[lvl]).span[lvl]++;
+        }
+        count++;
+    }
+
+    // unlinks a block from every level it is on
+    private void unlink(Block<E> block, Object firstElement) {
+        Block<E> finger = head;
+        for (int lvl = MAX_LEVELS - 1; lvl >= 0; lvl--) {
+            Block<E> next = finger.next[lvl];
+            while (next != null && next != block && compare(firstElement, next.first()) > 0) {
+                finger = next;
+                next = finger.next[lvl];
+            }
+            if (lvl < block.levels()) {
+                // blocks with the same first element may sit between finger and block
+                Block<E> before = finger;
+                while (before.next[lvl] != block) {
+                    before = before.next[lvl];
+                }
+                before.next[lvl] = block.next[lvl];
+                before.span[lvl] += block.span[lvl]; // block's elements, if any, now sit under before
+            }
+        }
+    }
+
+    public boolean add(E e) {
+        // path covers target on every level, so its links are the ones that grow
+        Block<E> target = descend(e, true);
+        int rank = ranks[0];
+
+        if (target == head) { // e goes in front of everything
+            target = head.next[0];
+            if (target == null) { // empty list, start the first block
+                Block<E> first = new Block<E>(blockSize, randomHeight());
+                linkAfter(head, 0, first, 0);
+                insertAt(first, 0, e);
+                return true;
+            }
+        }
+
+        int pos = upperBound(target, e);
+        if (target.size == blockSize) { // full, move the upper half into a new block
+            Block<E> upper = new Block<E>(blockSize, randomHeight());
+            int half = blockSize / 2;
+            System.arraycopy(target.elements, half, upper.elements, 0, blockSize - half);
+            Arrays.fill(target.elements, half, blockSize, null);
+            upper.size = blockSize - half;
+            target.size = half;
+            linkAfter(target, rank, upper, rank + half);
+            if (pos > half) {
+                target = upper;
+                pos -= half;
+            }
+        }
+        insertAt(target, pos, e);
+        return true;
+    }
+
+    public boolean contains(Object o) {
+        Block<E> block = descend(o, false);
+        if (block == head || lowerBound(block, o) == block.size) {
+            block = block.next[0];
+            if (block == null) {
+                return false;
+            }
+        }
+        return compare(o, block.get(lowerBound(block, o))) == 0;
+    }
+
+    public boolean remove(Object o) {
+        Block<E> block = descend(o, false);
+        int rank = ranks[0];
+        int pos = (block == head) ? block.size : lowerBound(block, o);
+
+        // walk the run of elements equal to o, which may continue into later blocks
+        while (true) {
+            if (pos == block.size) {
+                rank += block.size;
+                block = block.next[0];
+                pos = 0;
+                if (block == null) {
+                    return false;
+                }
+            }
+            if (compare(o, block.get(pos)) != 0) {
+                return false;
+            }
+            if (o.equals(block.get(pos))) {
+                break;
+            }
+            pos++;
+        }
+        removeAt(rank + pos);
+        return true;
+    }
+
+    // removes the element at index and keeps blocks from getting too sparse
+    private E removeAt(int index) {
+        Block<E> block = locate(index);
+        int pos = index - ranks[0];
+        E value = block.get(pos);
+        Object first = block.first();
+        block.delete(pos);
+        for (int lvl = 0; lvl < MAX_LEVELS; lvl++) {
+            path[lvl].span[lvl]--; // block itself on its own levels
+        }
+        count--;
+
+        if (block.size == 0) {
+            unlink(block, first);
+            return value;
+        }
+        Block<E> next = block.next[0];
+        if (block.size < minFill && next != null && block.size + next.size <= blockSize) {
+            // next's elements join block, which every link over next also covers
+            unlink(next, next.first());
+            System.arraycopy(next.elements, 0, block.elements, block.size, next.size);
+            block.size += next.size;
+        }
+        return value;
+    }
+
+    public E remove(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("chosen index is out of bounds");
+        }
+        return removeAt(index);
+    }
+
+    public E get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("chosen index is out of bounds");
+        }
+        // down the spans like SkipList.get, without touching path so reads stay reads
+        Block<E> block = head;
+        int rank = 0;
+        for (int lvl = MAX_LEVELS - 1; lvl >= 0; lvl--) {
+            while (block.next[lvl] != null && rank + block.span[lvl] <= index) {
+                rank += block.span[lvl];
+                block = block.next[lvl];
+            }
+        }
+        return block.get(index - rank);
+    }
+
+    public E getQuantile(double quantile) {
+        if (quantile >= 1 || quantile < 0) {
+            throw new IndexOutOfBoundsException("Quantile is out of range");
+        }
+        return get((int) (count * quantile));
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void clear() {
+        Arrays.fill(head.next, null);
+        Arrays.fill(head.span, 0);
+        count = 0;
+    }
+
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private Block<E> block = head.next[0];
+            private int pos = 0;
+
+            public boolean hasNext() {
+                return block != null;
+            }
+
+            public E next() {
+                if (block == null) {
+                    throw new NoSuchElementException();
+                }
+                E value = block.get(pos++);
+                if (pos == block.size) {
+                    block = block.next[0];
+                    pos = 0;
+                }
+                return value;
+            }
+        };
+    }
+
+    // number of blocks currently in use, handy for checking fill
+    public int blockCount() {
+        int blocks = 0;
+        for (Block<E> block = head.next[0]; block != null; block = block.next[0]) {
+            blocks++;
+        }
+        return blocks;
+    }
+
+    // Tests
+
+    public static boolean testMatchesSortedList() {
+        UnrolledSkipList<Integer> list = new UnrolledSkipList<Integer>(8);
+        List<Integer> expected = new ArrayList<Integer>();
+        Random rand = new Random(7);
+
+        for (int i = 0; i < 3000; i++) {
+            int value = rand.nextInt(500); // plenty of duplicates across blocks
+            list.add(value);
+            expected.add(value);
+        }
+        for (int i = 0; i < 2000; i++) {
+            Integer value = rand.nextInt(500);
+            if (list.remove(value) != expected.remove(value)) {
+                return false;
+            }
+        }
+        Collections.sort(expected);
+        return list.equals(expected)
+            && list.get(expected.size() - 1).equals(expected.get(expected.size() - 1))
+            && list.contains(expected.get(expected.size() / 2))
+            && !list.contains(-1);
+    }
+
+    public static boolean testBlocksSplitAndMerge() {
+        UnrolledSkipList<Integer> list = new UnrolledSkipList<Integer>(8);
+        for (int i = 0; i < 64; i++) {
+            list.add(i);
+        }
+        int afterInsert = list.blockCount();
+        for (int i = 0; i < 60; i++) {
+            list.remove(0);
+        }
+        return afterInsert >= 8
+            && list.blockCount() == 1
+            && list.size() == 4
+            && list.get(0) == 60
+            && list.getQuantile(0.5) == 62;
+    }
+
+    public static boolean testIndexesStayConsistent() {
+        // the link counts have to survive splits, merges and unlinked blocks
+        UnrolledSkipList<Integer> list = new UnrolledSkipList<Integer>(8);
+        List<Integer> expected = new ArrayList<Integer>();
+        Random rand = new Random(11);
+        for (int i = 0; i < 20000; i++) {
+            int value = rand.nextInt(3000);
+            int dice = rand.nextInt(10);
+            if (dice < 5 || expected.isEmpty()) {
+                list.add(value);
+                int at = Collections.binarySearch(expected, value);
+                expected.add((at < 0) ? -at - 1 : at, value);
+            } else if (dice < 7) {
+                list.remove((Integer) value);
+                expected.remove((Integer) value);
+            } else if (dice < 9) {
+                int index = rand.nextInt(expected.size());
+                if (!list.remove(index).equals(expected.remove(index)))
+                    return false;
+            } else if (!list.get(value % expected.size()).equals(expected.get(value % expected.size()))) {
+                return false;
+            }
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            if (!list.get(i).equals(expected.get(i)))
+                return false;
+        }
+        list.clear();
+        list.add(5);
+        return list.size() == 1 && list.get(0) == 5 && list.getQuantile(0.5) == 5;
+    }
+
+    public static void main(String[] args) {
+        System.out.println("matches sorted list: " + Boolean.toString(testMatchesSortedList()));
+        System.out.println("blocks split and merge: " + Boolean.toString(testBlocksSplitAndMerge()));
+        System.out.println("indexes stay consistent: " + Boolean.toString(testIndexesStayConsistent()));
+    }
+}
@@ -0,0 +1,335 @@
+/** Replays a recorded operation trace against SkipList and its variants and reports latency percentiles */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+public class WorkloadReplay {
+    /* one operation per trace line:
+     *   load <key>        untimed, applied before the clock starts
+     *   add <key>, remove <key>, contains <key>
+     *   get <index>       taken modulo the size at that point
+     *   quantile <q>      0 <= q < 1
+     *   iterate           walks the whole list
+     * blank lines and lines starting with # are skipped */
+    public enum Op { LOAD, ADD, REMOVE, CONTAINS, GET, QUANTILE, ITERATE }
+
+    private static final Op[] OPS = Op.values();
+    private static volatile long sink; // keeps results alive so the JIT cannot drop the work
+
+    // a parsed trace, packed so replay does no parsing or boxing of its own
+    public static final class Trace {
+        private final byte[] ops;
+        private final long[] args; // keys and indexes as they are, quantiles as double bits
+        private final int size;
+
+        Trace(byte[] ops, long[] args, int size) {
+            this.ops = ops;
+            this.args = args;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    public static Trace read(Reader in) throws IOException {
+        BufferedReader r = new BufferedReader(in);
+        byte[] ops = new byte[1024];
+        long[] args = new long[1024];
+        int size = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = r.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            Op op;
+            long arg = 0;
+            try {
+                op = Op.valueOf(parts[0].toUpperCase());
+                if (op == Op.QUANTILE) {
+                    arg = Double.doubleToLongBits(Double.parseDouble(parts[1]));
+                } else if (op != Op.ITERATE) {
+                    arg = Long.parseLong(parts[1]);
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("bad trace line " + lineNumber + ": " + line);
+            }
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                args = Arrays.copyOf(args, size * 2);
+            }
+            ops[size] = (byte) op.ordinal();
+            args[size] = arg;
+            size++;
+        }
+        return new Trace(ops, args, size);
+    }
+
+    // what one replay measured
+    public static final class Report {
+        private final EnumMap<Op, LatencyHistogram> latencies;
+        private final long operations;
+        private final long wallNanos;
+        private final int threads;
+
+        Report(EnumMap<Op, LatencyHistogram> latencies, long operations, long wallNanos, int threads) {
+            this.latencies = latencies;
+            this.operations = operations;
+            this.wallNanos = wallNanos;
+            this.threads = threads;
+        }
+
+        // timed operations per second over the wall clock time
+        public double throughput() {
+            return operations * 1e9 / Math.max(1, wallNanos);
+        }
+
+        public long operations() {
+            return operations;
+        }
+
+        // latencies of one kind of operation, or null if the trace had none
+        public LatencyHistogram latencies(Op op) {
+            return latencies.get(op);
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d ops on %d thread(s) in %.1f ms, %.0f ops/s%n",
+                operations, threads, wallNanos / 1e6, throughput()));
+            for (Map.Entry<Op, LatencyHistogram> entry : latencies.entrySet()) {
+                sb.append(String.format("  %-8s %s%n", entry.getKey().name().toLowerCase(), entry.getValue().summary()));
+            }
+            return sb.toString();
+        }
+    }
+
+    /* replays trace against list. The load lines go in first on the calling
+     * thread; then each of the threads takes every threads-th timed operation,
+     * all starting together. More than one thread needs a thread safe list. */
+    public static Report replay(Trace trace, final List<Long> list, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("need at least one thread");
+        }
+        long timed = 0;
+        for (int i = 0; i < trace.size; i++) {
+            if (trace.ops[i] == Op.LOAD.ordinal()) {
+                list.add(trace.args[i]);
+            } else {
+                timed++;
+            }
+        }
+
+        final List<EnumMap<Op, LatencyHistogram>> perThread = new ArrayList<EnumMap<Op, LatencyHistogram>>(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            final EnumMap<Op, LatencyHistogram> histograms = new EnumMap<Op, LatencyHistogram>(Op.class);
+            perThread.add(histograms);
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                run(trace, list, id, threads, histograms);
+            }, "replay-" + t);
+            workers[t].start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while replaying", e);
+        }
+        long wall = System.nanoTime() - began;
+
+        EnumMap<Op, LatencyHistogram> merged = new EnumMap<Op, LatencyHistogram>(Op.class);
+        for (EnumMap<Op, LatencyHistogram> histograms : perThread) {
+            for (Map.Entry<Op, LatencyHistogram> entry : histograms.entrySet()) {
+                merged.computeIfAbsent(entry.getKey(), op -> new LatencyHistogram()).merge(entry.getValue());
+            }
+        }
+        return new Report(merged, timed, wall, threads);
+    }
+
+    private static void run(Trace trace, List<Long> list, int id, int threads, EnumMap<Op, LatencyHistogram> latencies) {
+        LatencyHistogram[] byOp = new LatencyHistogram[OPS.length];
+        long local = 0;
+        for (int i = id; i < trace.size; i += threads) {
+            Op op = OPS[trace.ops[i]];
+            if (op == Op.LOAD) {
+                continue;
+            }
+            long arg = trace.args[i];
+            long began = System.nanoTime();
+            switch (op) {
+                case ADD:
+                    list.add(arg);
+                    break;
+                case REMOVE:
+                    local += list.remove((Long) arg) ? 1 : 0;
+                    break;
+                case CONTAINS:
+                    local += list.contains(arg) ? 1 : 0;
+                    break;
+                case GET: {
+                    int size = list.size();
+                    if (size > 0) {
+                        try {
+                            local += list.get((int) Math.floorMod(arg, (long) size));
+                        } catch (IndexOutOfBoundsException e) {
+                            // another thread shrank the list in between
+                        }
+                    }
+                    break;
+                }
+                case QUANTILE:
+                    try {
+                        local += quantile(list, Double.longBitsToDouble(arg));
+                    } catch (IndexOutOfBoundsException e) {
+                        // empty, or another thread emptied it in between
+                    }
+                    break;
+                case ITERATE:
+                    for (Long value : list) {
+                        local += value;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            long took = System.nanoTime() - began;
+            if (byOp[op.ordinal()] == null) {
+                byOp[op.ordinal()] = new LatencyHistogram();
+                latencies.put(op, byOp[op.ordinal()]);
+            }
+            byOp[op.ordinal()].record(took);
+        }
+        sink += local;
+    }
+
+    /* the list's own getQuantile, so a replay times the path each variant
+     * really takes (the sharded one's retry, say); other lists index by hand */
+    private static long quantile(List<Long> list, double quantile) {
+        if (list instanceof SkipList) {
+            return ((SkipList<Long>) list).getQuantile(quantile);
+        } else if (list instanceof ConcurrentSkipList) {
+            return ((ConcurrentSkipList<Long>) list).getQuantile(quantile);
+        } else if (list instanceof ShardedSkipList) {
+            return ((ShardedSkipList<Long>) list).getQuantile(quantile);
+        } else if (list instanceof UnrolledSkipList) {
+            return ((UnrolledSkipList<Long>) list).getQuantile(quantile);
+        } else if (list instanceof DeterministicSkipList) {
+            return ((DeterministicSkipList<Long>) list).getQuantile(quantile);
+        }
+        return list.get((int) (list.size() * quantile));
+    }
+
+    // the lists a trace can be replayed against, by name, and whether they are thread safe
+    private static final Map<String, Supplier<List<Long>>> VARIANTS = new LinkedHashMap<String, Supplier<List<Long>>>();
+    private static final Set<String> THREAD_SAFE = new HashSet<String>(Arrays.asList("concurrent", "sharded"));
+    static {
+        VARIANTS.put("skiplist", SkipList::new);
+        VARIANTS.put("concurrent", ConcurrentSkipList::new);
+        VARIANTS.put("sharded", ShardedSkipList::new);
+        VARIANTS.put("unrolled", UnrolledSkipList::new);
+        VARIANTS.put("deterministic", DeterministicSkipList::new);
+    }
+
+    // Tests
+
+    public static boolean testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 100000; v++) {
+            histogram.record(v * 10);
+        }
+        long p50 = histogram.percentile(50);
+        long p99 = histogram.percentile(99);
+        // within a bucket's width (1/64) of the exact answer
+        return Math.abs(p50 - 500000) <= 500000 / 64
+            && Math.abs(p99 - 990000) <= 990000 / 64
+            && histogram.percentile(100) == 1000000
+            && histogram.min() == 10
+            && histogram.count() == 100000;
+    }
+
+    public static boolean testReplayMatchesDirectRun() throws IOException {
+        StringWriter out = new StringWriter();
+        TraceGenerator.generate(TraceGenerator.Shape.ZIPFIAN, 20000, 2000, 3, out);
+        Trace trace = read(new StringReader(out.toString()));
+
+        // every variant ends up holding the same elements as a plain sorted list would
+        List<Long> expected = new ArrayList<Long>();
+        replay(trace, expected, 1);
+        Collections.sort(expected);
+        for (Map.Entry<String, Supplier<List<Long>>> variant : VARIANTS.entrySet()) {
+            List<Long> list = variant.getValue().get();
+            Report report = replay(trace, list, 1);
+            if (!new ArrayList<Long>(list).equals(expected) || report.operations() != 20000
+                || report.latencies(Op.CONTAINS).count() == 0
+                || quantile(list, 0.25) != expected.get(expected.size() / 4)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static boolean testMultiThreadedReplay() throws IOException {
+        StringWriter out = new StringWriter();
+        TraceGenerator.generate(TraceGenerator.Shape.SLIDING_WINDOW, 40000, 1000, 5, out);
+        Trace trace = read(new StringReader(out.toString()));
+        Report report = replay(trace, new ConcurrentSkipList<Long>(), 4);
+        long timed = 0;
+        for (Op op : OPS) {
+            if (report.latencies(op) != null) {
+                timed += report.latencies(op).count();
+            }
+        }
+        return timed == report.operations() && report.throughput() > 0;
+    }
+
+    /* WorkloadReplay <trace> [threads] [variant ...] replays a trace file,
+     * against every variant by default (only thread safe ones with threads > 1).
+     * With no arguments it runs its own tests. */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("histogram percentiles: " + Boolean.toString(testHistogramPercentiles()));
+            System.out.println("replay matches direct run: " + Boolean.toString(testReplayMatchesDirectRun()));
+            System.out.println("multi threaded replay: " + Boolean.toString(testMultiThreadedReplay()));
+            return;
+        }
+        Trace trace;
+        try (Reader in = new FileReader(args[0])) {
+            trace = read(in);
+        }
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+        List<String> names = (args.length > 2)
+            ? Arrays.asList(args).subList(2, args.length)
+            : new ArrayList<String>(VARIANTS.keySet());
+        for (String name : names) {
+            Supplier<List<Long>> variant = VARIANTS.get(name);
+            if (variant == null) {
+                System.out.println(name + ": unknown variant, pick from " + VARIANTS.keySet());
+                continue;
+            }
+            if (threads > 1 && !THREAD_SAFE.contains(name)) {
+                System.out.println(name + ": skipped, not thread safe");
+                continue;
+            }
+            System.out.println(name + ": " + replay(trace, variant.get(), threads));
+        }
+    }
+}